@@ -0,0 +1,98 @@
+package com.sagebionetworks.bridge.migration.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sagebionetworks.bridge.migration.externalId.CommaSeparatedList;
+import com.sagebionetworks.bridge.migration.externalId.ParticipantOptions;
+import com.sagebionetworks.bridge.migration.externalId.ParticipantOptionsDecoder;
+import com.sagebionetworks.bridge.migration.externalId.Utils;
+
+/**
+ * Extracting the migrated fields from a ParticipantOptions blob: a JsonNode tree plus the {@link Utils}
+ * accessors, against the streaming {@link ParticipantOptionsDecoder} into a reused {@link ParticipantOptions}.
+ * Both consume every value (including each list element) so the comparison includes the substrings a writer
+ * would bind. Run with "-prof gc" to compare allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+    private static final int RECORDS = 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({ "REALISTIC", "LARGE" })
+    public ParticipantOptionsGenerator.Shape shape;
+
+    private final ParticipantOptionsDecoder decoder = new ParticipantOptionsDecoder();
+    private final ParticipantOptions options = new ParticipantOptions();
+    private String[] json;
+    private int index;
+
+    @Setup
+    public void setup() {
+        ParticipantOptionsGenerator generator = new ParticipantOptionsGenerator(42, shape);
+        json = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            json[i] = generator.next();
+        }
+    }
+
+    private String next() {
+        index = (index + 1) & (RECORDS - 1);
+        return json[index];
+    }
+
+    @Benchmark
+    public void readTreeAndUtils(Blackhole blackhole) throws Exception {
+        JsonNode node = MAPPER.readTree(next());
+        blackhole.consume(Utils.getString(node, "EXTERNAL_IDENTIFIER"));
+        blackhole.consume(Utils.getString(node, "SHARING_SCOPE"));
+        blackhole.consume(Utils.getString(node, "TIME_ZONE"));
+        blackhole.consume(Utils.getBoolean(node, "EMAIL_NOTIFICATIONS", true));
+        consume(blackhole, Utils.getList(node, "LANGUAGES"));
+        consume(blackhole, Utils.getList(node, "DATA_GROUPS"));
+    }
+
+    @Benchmark
+    public void streamingDecoder(Blackhole blackhole) throws Exception {
+        decoder.decode(next(), options);
+        blackhole.consume(options.getExternalId());
+        blackhole.consume(options.getSharingScope());
+        blackhole.consume(options.getTimeZone());
+        blackhole.consume(options.getNotifyByEmail());
+        consume(blackhole, options.getLanguages());
+        consume(blackhole, options.getDataGroups());
+    }
+
+    private static void consume(Blackhole blackhole, List<String> values) {
+        for (String value : values) {
+            blackhole.consume(value);
+        }
+    }
+
+    private static void consume(Blackhole blackhole, CommaSeparatedList values) {
+        for (int i = 0; i < values.size(); i++) {
+            blackhole.consume(values.get(i));
+        }
+    }
+}
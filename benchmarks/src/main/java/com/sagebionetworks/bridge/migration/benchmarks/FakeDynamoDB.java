@@ -0,0 +1,152 @@
+package com.sagebionetworks.bridge.migration.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+/**
+ * An in-process stand-in for the ParticipantOptions table, serving {@link SyntheticData} records to the
+ * BatchGetItem and Scan calls the migration makes. Every call takes a fixed latency, to model the network
+ * round trip: synchronous calls sleep on the calling thread, and asynchronous calls complete on a scheduler
+ * without holding a thread, as the real async client's do. Nothing is ever throttled.
+ */
+public class FakeDynamoDB extends AmazonDynamoDBAsyncClient {
+
+    private static final String HEALTH_CODE_KEY = "healthDataCode";
+    private static final String DATA_ATTRIBUTE = "data";
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    private final SyntheticData data;
+    private final long latencyMicros;
+    private final ScheduledExecutorService scheduler;
+
+    public FakeDynamoDB(SyntheticData data, long latencyMicros) {
+        // The client's executor is never used, but must not keep the JVM alive if a run fails before shutdown()
+        super(new BasicAWSCredentials("fake", "fake"), Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-ddb-client");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.data = data;
+        this.latencyMicros = latencyMicros;
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "fake-ddb");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        sleep();
+        return respond(request);
+    }
+
+    @Override
+    public Future<BatchGetItemResult> batchGetItemAsync(BatchGetItemRequest request,
+            AsyncHandler<BatchGetItemRequest, BatchGetItemResult> handler) {
+        CompletableFuture<BatchGetItemResult> future = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            try {
+                BatchGetItemResult result = respond(request);
+                handler.onSuccess(request, result);
+                future.complete(result);
+            } catch (RuntimeException e) {
+                handler.onError(e);
+                future.completeExceptionally(e);
+            }
+        }, latencyMicros, TimeUnit.MICROSECONDS);
+        return future;
+    }
+
+    /**
+     * Segment s of n holds the accounts whose index is congruent to s mod n, read in pages of 1000.
+     */
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        sleep();
+        int segment = (request.getSegment() == null) ? 0 : request.getSegment();
+        int segments = (request.getTotalSegments() == null) ? 1 : request.getTotalSegments();
+        int start = segment;
+        if (request.getExclusiveStartKey() != null) {
+            String lastKey = request.getExclusiveStartKey().get(HEALTH_CODE_KEY).getS();
+            start = Integer.parseInt(lastKey.substring(2)) + segments;
+        }
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        int scanned = 0;
+        int index = start;
+        for (; index < data.size() && scanned < SCAN_PAGE_SIZE; index += segments) {
+            scanned++;
+            Map<String, AttributeValue> item = item(data.getHealthCode(index));
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        ScanResult result = new ScanResult().withItems(items).withScannedCount(scanned).withCount(items.size());
+        if (index < data.size()) {
+            Map<String, AttributeValue> lastKey = new HashMap<>();
+            lastKey.put(HEALTH_CODE_KEY, new AttributeValue().withS(data.getHealthCode(index - segments)));
+            result.setLastEvaluatedKey(lastKey);
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+        scheduler.shutdownNow();
+        super.shutdown();
+    }
+
+    private BatchGetItemResult respond(BatchGetItemRequest request) {
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        for (Map.Entry<String, KeysAndAttributes> entry : request.getRequestItems().entrySet()) {
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (Map<String, AttributeValue> key : entry.getValue().getKeys()) {
+                Map<String, AttributeValue> item = item(key.get(HEALTH_CODE_KEY).getS());
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            responses.put(entry.getKey(), items);
+        }
+        return new BatchGetItemResult().withResponses(responses)
+                .withUnprocessedKeys(new HashMap<String, KeysAndAttributes>());
+    }
+
+    private Map<String, AttributeValue> item(String healthCode) {
+        String record = data.getRecord(healthCode);
+        if (record == null) {
+            return null;
+        }
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(HEALTH_CODE_KEY, new AttributeValue().withS(healthCode));
+        item.put(DATA_ATTRIBUTE, new AttributeValue().withS(record));
+        return item;
+    }
+
+    private void sleep() {
+        if (latencyMicros > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(latencyMicros);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
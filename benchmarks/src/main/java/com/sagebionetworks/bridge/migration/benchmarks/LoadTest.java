@@ -0,0 +1,162 @@
+package com.sagebionetworks.bridge.migration.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sagebionetworks.bridge.migration.externalId.AccountCursor;
+import com.sagebionetworks.bridge.migration.externalId.ConnectionPool;
+import com.sagebionetworks.bridge.migration.externalId.ExternalIdApplication;
+import com.sagebionetworks.bridge.migration.externalId.MigrationMetrics;
+import com.sagebionetworks.bridge.migration.externalId.MigrationVerifier;
+
+/**
+ * End-to-end load test: loads {@link SyntheticData} accounts into MySQL (or an in-memory H2 database by
+ * default), serves their records from a {@link FakeDynamoDB}, and runs a whole migration through
+ * {@link ExternalIdApplication#execute}, wired up from the properties exactly as a real run is. Reports accounts
+ * per second, the p99 time from an account being read to being committed, and peak heap use.
+ * <p>
+ * Usage: java -cp target/benchmarks.jar com.sagebionetworks.bridge.migration.benchmarks.LoadTest
+ * [properties file]
+ * <p>
+ * Properties (all optional): accounts (1000000), seed, shape (REALISTIC or LARGE), mysql.url, mysql.username,
+ * mysql.password, ddb.latencyMicros (5000), and any of the application's, such as workers (4 here), writers,
+ * queueDepth, pageSize, batchSize, writer, threads, ddb.async, ddb.maxConcurrency and source (get or scan). The
+ * checkpoint and metrics go to a temporary directory unless checkpoint.file and metrics.file are set. With
+ * verify=true, the result is checked with a {@link MigrationVerifier} afterwards. Use an empty MySQL schema: the
+ * Accounts tables are created if they do not exist, and the accounts are inserted.
+ * <p>
+ * An H2 database lives in the same heap as the migration, so the report also gives the heap in use after
+ * loading the accounts, as a baseline.
+ */
+public class LoadTest {
+
+    private static final String H2_URL = "jdbc:h2:mem:loadtest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final String DDB_TABLE = "ParticipantOptions";
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        if (args.length > 0) {
+            try (InputStream in = new FileInputStream(args[0])) {
+                properties.load(in);
+            }
+        }
+        int accounts = Integer.parseInt(properties.getProperty("accounts", "1000000"));
+        long seed = Long.parseLong(properties.getProperty("seed", "42"));
+        ParticipantOptionsGenerator.Shape shape = ParticipantOptionsGenerator.Shape
+                .valueOf(properties.getProperty("shape", "REALISTIC"));
+        long latencyMicros = Long.parseLong(properties.getProperty("ddb.latencyMicros", "5000"));
+        String url = properties.getProperty("mysql.url", H2_URL);
+        String username = properties.getProperty("mysql.username", "sa");
+        String password = properties.getProperty("mysql.password", "");
+        boolean h2 = url.startsWith("jdbc:h2:");
+
+        boolean bulk = "bulk".equals(properties.getProperty("writer"));
+        if (bulk && h2) {
+            throw new IllegalArgumentException("writer=bulk needs MySQL (set mysql.url)");
+        }
+        // Defaults that differ from a real run's; everything else is read by the application itself
+        setDefault(properties, "ddb.table", DDB_TABLE);
+        setDefault(properties, "workers", "4");
+        setDefault(properties, "metrics.intervalSeconds", "10");
+        Path scratch = Files.createTempDirectory("loadtest");
+        setDefault(properties, "checkpoint.file", scratch.resolve("checkpoint").toString());
+        setDefault(properties, "metrics.file", scratch.resolve("metrics.json").toString());
+        setDefault(properties, "verify.file", "loadtest.verify.tsv");
+
+        SyntheticData data = new SyntheticData(accounts, seed, shape);
+        ConnectionPool.ConnectionFactory connections = h2 ? () -> DriverManager.getConnection(url, username, password)
+                : ExternalIdApplication.connectionFactory(properties);
+        long start = System.nanoTime();
+        try (Connection connection = connections.create()) {
+            data.load(connection);
+        }
+        System.out.printf("Loaded %d accounts in %.1f s%n", accounts, seconds(System.nanoTime() - start));
+
+        FakeDynamoDB ddb = new FakeDynamoDB(data, latencyMicros);
+        // Every client the application asks for is the fake, whatever the fetch mode
+        ExternalIdApplication.DynamoDBClients clients = new ExternalIdApplication.DynamoDBClients() {
+            @Override
+            public AmazonDynamoDBClient create(int maxConnections) {
+                return ddb;
+            }
+
+            @Override
+            public AmazonDynamoDBAsyncClient createAsync(int maxConcurrency) {
+                return ddb;
+            }
+        };
+        try {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+            AtomicLong peakHeap = new AtomicLong(baselineHeap);
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "heap-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(),
+                    Math::max), 0, 50, TimeUnit.MILLISECONDS);
+
+            start = System.nanoTime();
+            MigrationMetrics metrics;
+            try {
+                metrics = ExternalIdApplication.execute(properties, ExternalIdApplication.Command.MIGRATE, false,
+                        clients, connections);
+            } finally {
+                sampler.shutdownNow();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            JsonNode json = metrics.toJson();
+            long p99Micros = json.get("latency").get("p99Micros").longValue();
+            System.out.printf("Migrated %d accounts (%d failed) in %.1f s: %.0f accounts/s%n",
+                    metrics.getMigrated(), metrics.getFailed(), seconds(elapsed),
+                    metrics.getMigrated() / seconds(elapsed));
+            System.out.println("p99 per-account latency: " + ((p99Micros > 0)
+                    ? String.format("%.1f ms", p99Micros / 1000.0) : "not recorded by this source"));
+            System.out.printf("Peak heap: %d MB (%d MB in use before the run)%n", peakHeap.get() >> 20,
+                    baselineHeap >> 20);
+
+            try (ConnectionPool checkPool = new ConnectionPool(1, connections)) {
+                System.out.println("Unmigrated accounts left: " + AccountCursor.countBacklog(checkPool));
+            }
+            if (Boolean.parseBoolean(properties.getProperty("verify"))) {
+                ExternalIdApplication.execute(properties, ExternalIdApplication.Command.VERIFY, false, clients,
+                        connections);
+                Path report = Paths.get(properties.getProperty("verify.file"));
+                // Less the header line
+                System.out.println("Differences found: " + (Files.readAllLines(report, StandardCharsets.UTF_8)
+                        .size() - 1) + " (see " + report + ")");
+            }
+        } finally {
+            ddb.shutdown();
+        }
+    }
+
+    private static void setDefault(Properties properties, String key, String value) {
+        if (properties.getProperty(key) == null) {
+            properties.setProperty(key, value);
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,98 @@
+package com.sagebionetworks.bridge.migration.benchmarks;
+
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Generates ParticipantOptions "data" blobs with the same shapes as the real-life examples in UtilsTest:
+ * most fields null or absent, external IDs rare, "en" by far the most common language, and a few short data
+ * groups. The "large" shape keeps the same fields but fills every one of them, with longer language and data
+ * group lists, as an upper bound on the work per record.
+ */
+public class ParticipantOptionsGenerator {
+
+    public enum Shape {
+        REALISTIC, LARGE
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String[] SCOPES = { "NO_SHARING", "ALL_QUALIFIED_RESEARCHERS", "SPONSORS_AND_PARTNERS" };
+    private static final String[] LANGUAGES = { "en", "fr", "es", "de", "ja", "zh" };
+    private static final String[] DATA_GROUPS = { "group1", "group2", "test_user", "sdk-int-1", "sdk-int-2",
+            "control", "treatment" };
+    private static final String[] TIME_ZONES = { "-08:00", "-07:00", "-05:00", "+00:00", "+01:00", "+09:00" };
+
+    private final Random random;
+    private final Shape shape;
+
+    public ParticipantOptionsGenerator(long seed, Shape shape) {
+        this.random = new Random(seed);
+        this.shape = shape;
+    }
+
+    public String next() {
+        ObjectNode node = MAPPER.createObjectNode();
+        if (shape == Shape.LARGE) {
+            node.put("EXTERNAL_IDENTIFIER", externalId());
+            node.put("SHARING_SCOPE", pick(SCOPES));
+            node.put("TIME_ZONE", pick(TIME_ZONES));
+            node.put("EMAIL_NOTIFICATIONS", Boolean.toString(random.nextBoolean()));
+            node.put("LANGUAGES", list(LANGUAGES, 3 + random.nextInt(4)));
+            node.put("DATA_GROUPS", list(DATA_GROUPS, 4 + random.nextInt(4)));
+            return node.toString();
+        }
+        // About one in six records predates most options and has only some keys, or none
+        boolean legacy = random.nextInt(6) == 0;
+        if (!legacy || random.nextBoolean()) {
+            put(node, "EXTERNAL_IDENTIFIER", (random.nextInt(12) == 0) ? externalId() : null, legacy);
+            put(node, "SHARING_SCOPE", (random.nextInt(5) == 0) ? null : pick(SCOPES), legacy);
+            put(node, "EMAIL_NOTIFICATIONS", (random.nextInt(4) == 0) ? "false" : "true", legacy);
+            put(node, "LANGUAGES", languages(), legacy);
+            put(node, "DATA_GROUPS", dataGroups(), legacy);
+            if (random.nextInt(10) == 0) {
+                node.put("TIME_ZONE", pick(TIME_ZONES));
+            }
+        }
+        return node.toString();
+    }
+
+    private void put(ObjectNode node, String field, String value, boolean omitNulls) {
+        if (value != null || !omitNulls) {
+            node.put(field, value);
+        }
+    }
+
+    private String languages() {
+        int roll = random.nextInt(10);
+        return (roll < 4) ? null : (roll < 9) ? "en" : list(LANGUAGES, 2);
+    }
+
+    private String dataGroups() {
+        int roll = random.nextInt(10);
+        return (roll < 6) ? null : (roll < 9) ? pick(DATA_GROUPS) : list(DATA_GROUPS, 2 + random.nextInt(2));
+    }
+
+    private String externalId() {
+        return Integer.toString(random.nextInt(Integer.MAX_VALUE), 36).toUpperCase();
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /** A comma-separated list of distinct values, sometimes with stray whitespace as in real data. */
+    private String list(String[] values, int size) {
+        StringBuilder sb = new StringBuilder();
+        int start = random.nextInt(values.length);
+        for (int i = 0; i < Math.min(size, values.length); i++) {
+            if (i > 0) {
+                sb.append(random.nextInt(8) == 0 ? " , " : ",");
+            }
+            sb.append(values[(start + i) % values.length]);
+        }
+        return sb.toString();
+    }
+}
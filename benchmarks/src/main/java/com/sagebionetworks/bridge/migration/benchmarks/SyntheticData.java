@@ -0,0 +1,103 @@
+package com.sagebionetworks.bridge.migration.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * A deterministic set of synthetic accounts and their ParticipantOptions records, for load tests. Account i
+ * has health code "hc" + i and a random-looking ID (so the keyset cursor walks the primary key in a
+ * different order than the accounts were inserted, as it does in production). Records are drawn from a fixed
+ * pool of {@link ParticipantOptionsGenerator} blobs, so millions of accounts cost no more memory than the pool,
+ * and one account in fifty has no record at all.
+ */
+public class SyntheticData {
+
+    static final String[] CREATE_TABLES_SQL = {
+            "CREATE TABLE IF NOT EXISTS Accounts (id VARCHAR(255) PRIMARY KEY, healthCode VARCHAR(255), "
+                    + "externalId VARCHAR(255), sharingScope VARCHAR(255), timeZone VARCHAR(255), "
+                    + "notifyByEmail BOOLEAN DEFAULT TRUE, migrationVersion INT DEFAULT 0)",
+            "CREATE TABLE IF NOT EXISTS AccountLanguages (accountId VARCHAR(255), language VARCHAR(255), "
+                    + "PRIMARY KEY (accountId, language))",
+            "CREATE TABLE IF NOT EXISTS AccountDataGroups (accountId VARCHAR(255), dataGroup VARCHAR(255), "
+                    + "PRIMARY KEY (accountId, dataGroup))" };
+
+    private static final int POOL_SIZE = 4096;
+    private static final int MISSING_RECORD_RATE = 50;
+    private static final int INSERT_BATCH_SIZE = 10000;
+
+    private final int accounts;
+    private final long seed;
+    private final String[] records = new String[POOL_SIZE];
+
+    public SyntheticData(int accounts, long seed, ParticipantOptionsGenerator.Shape shape) {
+        this.accounts = accounts;
+        this.seed = seed;
+        ParticipantOptionsGenerator generator = new ParticipantOptionsGenerator(seed, shape);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            records[i] = generator.next();
+        }
+    }
+
+    public int size() {
+        return accounts;
+    }
+
+    public String getUserId(int index) {
+        return new UUID(mix(seed ^ index), index).toString();
+    }
+
+    public String getHealthCode(int index) {
+        return "hc" + index;
+    }
+
+    /**
+     * The data attribute of the account's ParticipantOptions record, or null if it has none.
+     */
+    public String getRecord(String healthCode) {
+        int index;
+        try {
+            index = Integer.parseInt(healthCode.substring(2));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        if (index < 0 || index >= accounts || index % MISSING_RECORD_RATE == 0) {
+            return null;
+        }
+        return records[(int) ((mix(seed + index) >>> 1) % POOL_SIZE)];
+    }
+
+    /**
+     * Create the tables the migration touches (if they do not exist), and insert every account as unmigrated.
+     */
+    public void load(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : CREATE_TABLES_SQL) {
+                statement.execute(sql);
+            }
+        }
+        try (PreparedStatement statement = connection
+                .prepareStatement("INSERT INTO Accounts (id, healthCode, migrationVersion) VALUES (?, ?, 0)")) {
+            for (int i = 0; i < accounts; i++) {
+                statement.setString(1, getUserId(i));
+                statement.setString(2, getHealthCode(i));
+                statement.addBatch();
+                if ((i + 1) % INSERT_BATCH_SIZE == 0 || i == accounts - 1) {
+                    statement.executeBatch();
+                    connection.commit();
+                }
+            }
+        }
+        connection.setAutoCommit(true);
+    }
+
+    // SplitMix64's finalizer
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,108 @@
+package com.sagebionetworks.bridge.migration.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sagebionetworks.bridge.migration.externalId.Utils;
+
+/**
+ * The JSON-to-SQL conversion hot path in {@link Utils}, one ParticipantOptions record per operation. Each
+ * invocation takes the next of 1024 generated records, so the branch predictor can't learn a single input.
+ * Run with "-prof gc" to see allocation per operation alongside the timings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    private static final int RECORDS = 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({ "REALISTIC", "LARGE" })
+    public ParticipantOptionsGenerator.Shape shape;
+
+    private String[] json;
+    private JsonNode[] nodes;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        ParticipantOptionsGenerator generator = new ParticipantOptionsGenerator(42, shape);
+        json = new String[RECORDS];
+        nodes = new JsonNode[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            json[i] = generator.next();
+            nodes[i] = MAPPER.readTree(json[i]);
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (RECORDS - 1);
+        return index;
+    }
+
+    @Benchmark
+    public List<String> getList() {
+        return Utils.getList(nodes[next()], "DATA_GROUPS");
+    }
+
+    @Benchmark
+    public String getString() {
+        return Utils.getString(nodes[next()], "SHARING_SCOPE");
+    }
+
+    @Benchmark
+    public boolean getBoolean() {
+        return Utils.getBoolean(nodes[next()], "EMAIL_NOTIFICATIONS", true);
+    }
+
+    @Benchmark
+    public List<String> optionsToAccountUpdateSQL() throws Exception {
+        List<String> statements = new ArrayList<>();
+        Utils.optionsToAccountUpdateSQL(statements, "6kVKYzQ2R0sAgWMZlGTQw5", nodes[next()]);
+        return statements;
+    }
+
+    @Benchmark
+    public List<String> optionsToLanguagesUpdateSQL() {
+        List<String> statements = new ArrayList<>();
+        Utils.optionsToLanguagesUpdateSQL(statements, "6kVKYzQ2R0sAgWMZlGTQw5", nodes[next()]);
+        return statements;
+    }
+
+    @Benchmark
+    public List<String> optionsToDataGroupsUpdateSQL() {
+        List<String> statements = new ArrayList<>();
+        Utils.optionsToDataGroupsUpdateSQL(statements, "6kVKYzQ2R0sAgWMZlGTQw5", nodes[next()]);
+        return statements;
+    }
+
+    /** The full per-record path: parse the DynamoDB blob, then build all the SQL for it. */
+    @Benchmark
+    public List<String> readTreeAndConvert() throws Exception {
+        JsonNode node = MAPPER.readTree(json[next()]);
+        List<String> statements = new ArrayList<>();
+        Utils.optionsToAccountUpdateSQL(statements, "6kVKYzQ2R0sAgWMZlGTQw5", node);
+        Utils.optionsToLanguagesUpdateSQL(statements, "6kVKYzQ2R0sAgWMZlGTQw5", node);
+        Utils.optionsToDataGroupsUpdateSQL(statements, "6kVKYzQ2R0sAgWMZlGTQw5", node);
+        return statements;
+    }
+}
@@ -0,0 +1,102 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streams the unmigrated accounts in one partition, a page at a time, in ID order. Each page is selected
+ * with a keyset condition ({@code id > lastId}) rather than an OFFSET, so every page costs the same index
+ * range scan no matter how deep into the table the cursor is, and only one page is ever held in memory.
+ * Because the cursor moves past accounts whether or not they migrate, an account that fails is not
+ * selected again in the same run.
+ */
+public class AccountCursor {
+
+    private final ConnectionPool pool;
+    private final AccountPartition partition;
+    private final String sql;
+    private String lastId;
+    private boolean exhausted;
+
+    public AccountCursor(ConnectionPool pool, AccountPartition partition) {
+        this(pool, partition, "");
+    }
+
+    /**
+     * A cursor that starts after the given account ID (as recorded in a {@link Checkpoint}).
+     */
+    public AccountCursor(ConnectionPool pool, AccountPartition partition, String startAfterId) {
+        this.pool = pool;
+        this.partition = partition;
+        this.sql = "SELECT id, healthCode FROM Accounts WHERE migrationVersion != 1 AND id > ? AND "
+                + partition.getPredicate() + " ORDER BY id LIMIT ?";
+        this.lastId = startAfterId;
+    }
+
+    /**
+     * The total number of accounts still to be migrated, across all partitions.
+     */
+    public static long countBacklog(ConnectionPool pool) throws SQLException, InterruptedException {
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement();
+                    ResultSet results = statement
+                            .executeQuery("SELECT COUNT(*) FROM Accounts WHERE migrationVersion != 1")) {
+                results.next();
+                return results.getLong(1);
+            }
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    public AccountPartition getPartition() {
+        return partition;
+    }
+
+    /**
+     * The ID of the last account returned by the cursor (empty if no page has been read yet).
+     */
+    public String getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Returns the next page of up to pageSize accounts, as an ordered map of account IDs to health codes.
+     * An empty map indicates the partition has been fully read.
+     */
+    public Map<String, String> nextPage(int pageSize) throws SQLException, InterruptedException {
+        Map<String, String> page = new LinkedHashMap<>();
+        if (exhausted || pageSize < 1) {
+            return page;
+        }
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, lastId);
+                statement.setInt(partition.bind(statement, 2), pageSize);
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        String userId = results.getString("id");
+                        String healthCode = results.getString("healthCode");
+                        page.put(userId, healthCode);
+                        lastId = userId;
+                    }
+                }
+            }
+        } finally {
+            pool.release(connection);
+        }
+        if (page.size() < pageSize) {
+            exhausted = true;
+        }
+        return page;
+    }
+}
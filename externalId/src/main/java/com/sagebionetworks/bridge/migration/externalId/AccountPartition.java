@@ -0,0 +1,171 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One of <i>count</i> disjoint ranges of account IDs: those after the lower bound, up to and including the upper
+ * bound (a missing bound leaves that end open). Every account falls into exactly one partition, so workers that
+ * each own a partition never touch the same account, and each worker's queries are range scans of the primary
+ * key rather than scans of the whole index.
+ * <p>
+ * The bounds are only meaningful to the database that chose them (they depend on its collation), and a run can
+ * only be resumed with the same bounds it started with, so they are saved with the run's position.
+ */
+public final class AccountPartition {
+
+    static final String COUNT_SQL = "SELECT COUNT(*) FROM Accounts";
+    // An index-only scan of the primary key, once per boundary when the run starts
+    static final String BOUNDARY_SQL = "SELECT id FROM Accounts ORDER BY id LIMIT 1 OFFSET ?";
+
+    private static final AccountPartition ALL = new AccountPartition(0, 1, null, null);
+
+    private final int index;
+    private final int count;
+    private final String lowerBound;
+    private final String upperBound;
+
+    /**
+     * @param lowerBound
+     *            the partition's accounts come after this ID; null for the first partition
+     * @param upperBound
+     *            the last ID the partition can include; null for the last partition
+     */
+    public AccountPartition(int index, int count, String lowerBound, String upperBound) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid partition " + index + " of " + count);
+        }
+        if ((lowerBound == null) != (index == 0) || (upperBound == null) != (index == count - 1)) {
+            throw new IllegalArgumentException("Only the first and last partitions can be open-ended");
+        }
+        this.index = index;
+        this.count = count;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+    }
+
+    /**
+     * The whole table, as a single partition.
+     */
+    public static AccountPartition all() {
+        return ALL;
+    }
+
+    /**
+     * Divide the Accounts table into partitions with roughly the same number of accounts each.
+     */
+    public static List<AccountPartition> split(ConnectionPool pool, int count) throws SQLException,
+            InterruptedException {
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            return split(connection, count);
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    static List<AccountPartition> split(Connection connection, int count) throws SQLException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        long accounts;
+        try (Statement statement = connection.createStatement();
+                ResultSet results = statement.executeQuery(COUNT_SQL)) {
+            results.next();
+            accounts = results.getLong(1);
+        }
+        List<String> boundaries = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(BOUNDARY_SQL)) {
+            for (int i = 1; i < count; i++) {
+                statement.setLong(1, accounts * i / count);
+                try (ResultSet results = statement.executeQuery()) {
+                    // Accounts deleted since the count leave the remaining partitions empty
+                    String previous = boundaries.isEmpty() ? "" : boundaries.get(boundaries.size() - 1);
+                    boundaries.add(results.next() ? results.getString(1) : previous);
+                }
+            }
+        }
+        return fromBoundaries(boundaries);
+    }
+
+    /**
+     * The partitions divided at the given IDs, in order: each boundary is the last ID of one partition.
+     */
+    public static List<AccountPartition> fromBoundaries(List<String> boundaries) {
+        int count = boundaries.size() + 1;
+        List<AccountPartition> partitions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            partitions.add(new AccountPartition(i, count, (i == 0) ? null : boundaries.get(i - 1),
+                    (i == count - 1) ? null : boundaries.get(i)));
+        }
+        return Collections.unmodifiableList(partitions);
+    }
+
+    /**
+     * The IDs the partitions are divided at; the inverse of {@link #fromBoundaries(List)}.
+     */
+    public static List<String> getBoundaries(List<AccountPartition> partitions) {
+        List<String> boundaries = new ArrayList<>();
+        for (int i = 0; i < partitions.size() - 1; i++) {
+            boundaries.add(partitions.get(i).getUpperBound());
+        }
+        return boundaries;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getLowerBound() {
+        return lowerBound;
+    }
+
+    public String getUpperBound() {
+        return upperBound;
+    }
+
+    /**
+     * A SQL condition (to be combined with AND) restricting a query on Accounts to this partition. Its
+     * parameters are set with {@link #bind(PreparedStatement, int)}.
+     */
+    public String getPredicate() {
+        if (lowerBound == null && upperBound == null) {
+            return "1 = 1";
+        } else if (lowerBound == null) {
+            return "id <= ?";
+        } else if (upperBound == null) {
+            return "id > ?";
+        }
+        return "id > ? AND id <= ?";
+    }
+
+    /**
+     * Set the parameters of the predicate, starting at the given parameter index. Returns the index of the
+     * parameter after them.
+     */
+    public int bind(PreparedStatement statement, int parameterIndex) throws SQLException {
+        if (lowerBound != null) {
+            statement.setString(parameterIndex++, lowerBound);
+        }
+        if (upperBound != null) {
+            statement.setString(parameterIndex++, upperBound);
+        }
+        return parameterIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "partition " + (index + 1) + "/" + count;
+    }
+}
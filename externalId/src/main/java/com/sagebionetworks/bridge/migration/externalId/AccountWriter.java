@@ -0,0 +1,19 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.sql.Connection;
+import java.util.Map;
+
+/**
+ * Applies the ParticipantOptions of a group of accounts to the Accounts, AccountLanguages and
+ * AccountDataGroups tables.
+ */
+public interface AccountWriter {
+
+    /**
+     * Write the options for a group of accounts, using the supplied connection. The map is from account ID
+     * to the JSON data of the account's ParticipantOptions record. Returns the number of accounts that were
+     * successfully migrated; failures are logged and rolled back without affecting the other accounts in the
+     * group.
+     */
+    int write(Connection connection, Map<String, String> accounts) throws Exception;
+}
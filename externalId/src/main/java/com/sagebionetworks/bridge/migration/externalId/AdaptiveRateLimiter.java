@@ -0,0 +1,127 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A token bucket shared by all workers, whose rate adapts to the back-pressure reported by the resource it
+ * protects. Callers report throttling errors with {@link #onThrottle()}, which halves the rate, and
+ * successful calls with {@link #onSuccess()}, which raise it again in steps of a tenth of the maximum. The rate
+ * is halved at most once per second, so a burst of errors seen by several workers at once only halves it one
+ * time, and raised at most once per second, and not within a second of being halved. A recent increase never
+ * delays a decrease: the two are timed separately.
+ * 
+ * Permits are handed out on credit: a caller that asks for more permits than are available takes them
+ * immediately and waits off the debt, so large requests (like a 100-key batch) are not starved by small ones.
+ */
+public class AdaptiveRateLimiter {
+
+    private final static Logger LOGGER = Logger.getLogger(AdaptiveRateLimiter.class.getName());
+
+    static final double MIN_RATE_FRACTION = 0.05;
+    static final double RAMP_UP_FRACTION = 0.1;
+    static final long ADJUSTMENT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final double maxRate;
+    private final double minRate;
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+    private long lastIncreaseNanos;
+
+    /**
+     * A limiter that never blocks, for when no limit is configured.
+     */
+    public static AdaptiveRateLimiter unlimited(String name) {
+        return new AdaptiveRateLimiter(name, 0);
+    }
+
+    /**
+     * @param maxRate
+     *            the maximum number of permits per second; zero or less for no limit
+     */
+    public AdaptiveRateLimiter(String name, double maxRate) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.minRate = Math.max(maxRate * MIN_RATE_FRACTION, Math.min(1.0, maxRate));
+        this.rate = maxRate;
+        this.tokens = maxRate;
+        this.lastRefillNanos = nanoTime();
+        this.lastDecreaseNanos = lastRefillNanos - ADJUSTMENT_INTERVAL_NANOS;
+        this.lastIncreaseNanos = lastDecreaseNanos;
+    }
+
+    public boolean isUnlimited() {
+        return maxRate <= 0;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public void acquire(int permits) throws InterruptedException {
+        if (isUnlimited()) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= permits;
+            waitNanos = (tokens < 0) ? (long) (-tokens / rate * 1e9) : 0;
+        }
+        if (waitNanos > 0) {
+            sleep(waitNanos);
+        }
+    }
+
+    public void onThrottle() {
+        if (isUnlimited()) {
+            return;
+        }
+        synchronized (this) {
+            long now = nanoTime();
+            if (now - lastDecreaseNanos < ADJUSTMENT_INTERVAL_NANOS || rate <= minRate) {
+                return;
+            }
+            lastDecreaseNanos = now;
+            refill();
+            rate = Math.max(minRate, rate / 2);
+            tokens = Math.min(tokens, 0);
+        }
+        LOGGER.warning(name + " throttled, reducing rate to " + String.format("%.1f", rate) + "/s");
+    }
+
+    public void onSuccess() {
+        if (isUnlimited()) {
+            return;
+        }
+        synchronized (this) {
+            long now = nanoTime();
+            if (rate >= maxRate || now - lastIncreaseNanos < ADJUSTMENT_INTERVAL_NANOS
+                    || now - lastDecreaseNanos < ADJUSTMENT_INTERVAL_NANOS) {
+                return;
+            }
+            lastIncreaseNanos = now;
+            refill();
+            rate = Math.min(maxRate, rate + maxRate * RAMP_UP_FRACTION);
+        }
+        LOGGER.info(name + " recovering, increasing rate to " + String.format("%.1f", rate) + "/s");
+    }
+
+    private void refill() {
+        long now = nanoTime();
+        // The bucket holds at most one second's worth of permits
+        tokens = Math.min(rate, tokens + (now - lastRefillNanos) / 1e9 * rate);
+        lastRefillNanos = now;
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected void sleep(long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+}
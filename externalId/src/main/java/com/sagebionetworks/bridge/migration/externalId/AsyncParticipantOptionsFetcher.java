@@ -0,0 +1,192 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.google.common.collect.Lists;
+
+/**
+ * Issues BatchGetItem requests through the async client, so that a caller can have many batches in flight
+ * without a thread of its own waiting on each one. The number of outstanding requests is capped by a semaphore;
+ * when the cap is reached, {@link #fetchAsync(Collection)} blocks until a request completes. Unprocessed keys
+ * and throttling are retried with the same backoff and rate limiting as the synchronous fetcher: the backoff is
+ * waited out on a scheduler rather than a sleeping thread, and each retry is then sent from a pool thread, so a
+ * retry waiting on the rate limiter never holds up the others. There are at most {@link #MAX_RETRY_SENDERS} of
+ * those threads, and every retry waiting for one holds a permit, so retries are bounded by the cap too.
+ * <p>
+ * One instance is meant to be shared by every reader, so the cap applies to the whole process. Close it when
+ * the run is over to stop the retry threads.
+ */
+public class AsyncParticipantOptionsFetcher extends ParticipantOptionsFetcher implements AutoCloseable {
+
+    private final static Logger LOGGER = Logger.getLogger(AsyncParticipantOptionsFetcher.class.getName());
+
+    static final int MAX_RETRY_SENDERS = 4;
+
+    private final AmazonDynamoDBAsyncClient client;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService retries;
+    private final ExecutorService retrySenders;
+
+    /**
+     * @param maxConcurrency
+     *            the maximum number of BatchGetItem requests in flight at once
+     */
+    public AsyncParticipantOptionsFetcher(AmazonDynamoDBAsyncClient client, String ddbTable, int maxConcurrency,
+            AdaptiveRateLimiter readLimiter, MigrationMetrics metrics) {
+        super(client, ddbTable, readLimiter, metrics);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        this.client = client;
+        this.inFlight = new Semaphore(maxConcurrency);
+        this.retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ddb-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int senders = Math.min(maxConcurrency, MAX_RETRY_SENDERS);
+        this.retrySenders = new ThreadPoolExecutor(senders, senders, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(maxConcurrency), runnable -> {
+                    Thread thread = new Thread(runnable, "ddb-retry-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Stop the retry threads, once the run is over: a batch still waiting for a retry would never complete, and
+     * no further retries can be scheduled.
+     */
+    @Override
+    public void close() {
+        retries.shutdownNow();
+        retrySenders.shutdownNow();
+    }
+
+    @Override
+    public Map<String, String> fetch(Collection<String> healthCodes) throws Exception {
+        try {
+            return fetchAsync(healthCodes).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> fetchAsync(Collection<String> healthCodes) throws Exception {
+        // Batches complete on different SDK threads
+        Map<String, String> records = new ConcurrentHashMap<>();
+        List<String> uniqueCodes = Lists.newArrayList(new LinkedHashSet<>(healthCodes));
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (List<String> batch : Lists.partition(uniqueCodes, MAX_BATCH_SIZE)) {
+            inFlight.acquire();
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            submit(requestItems(batch), 0, records, future);
+            batches.add(future);
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).thenApply(v -> {
+            addDefaults(uniqueCodes, records);
+            return records;
+        });
+    }
+
+    int getAvailablePermits() {
+        return inFlight.availablePermits();
+    }
+
+    private void submit(Map<String, KeysAndAttributes> requestItems, int attempt, Map<String, String> records,
+            CompletableFuture<Void> future) {
+        try {
+            readLimiter.acquire(requestItems.get(ddbTable).getKeys().size());
+            long start = System.nanoTime();
+            client.batchGetItemAsync(new BatchGetItemRequest().withRequestItems(requestItems),
+                    new AsyncHandler<BatchGetItemRequest, BatchGetItemResult>() {
+                        @Override
+                        public void onError(Exception e) {
+                            if (e instanceof ProvisionedThroughputExceededException) {
+                                readLimiter.onThrottle();
+                                retry(requestItems, attempt + 1, records, future);
+                            } else {
+                                finish(future, e);
+                            }
+                        }
+
+                        @Override
+                        public void onSuccess(BatchGetItemRequest request, BatchGetItemResult result) {
+                            metrics.fetch.record(System.nanoTime() - start);
+                            Map<String, KeysAndAttributes> unprocessed = collect(result, records);
+                            if (unprocessed.isEmpty()) {
+                                finish(future, null);
+                            } else {
+                                retry(unprocessed, attempt + 1, records, future);
+                            }
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(future, e);
+        } catch (Exception e) {
+            finish(future, e);
+        }
+    }
+
+    private void retry(Map<String, KeysAndAttributes> requestItems, int attempt, Map<String, String> records,
+            CompletableFuture<Void> future) {
+        if (attempt >= MAX_ATTEMPTS) {
+            finish(future,
+                    new IllegalStateException("DynamoDB left keys unprocessed after " + MAX_ATTEMPTS + " attempts"));
+            return;
+        }
+        LOGGER.info("Retrying unprocessed keys (attempt " + attempt + ")");
+        // The scheduler thread only hands the retry over; acquiring from the rate limiter may block
+        try {
+            retries.schedule(() -> {
+                try {
+                    retrySenders.execute(() -> submit(requestItems, attempt, records, future));
+                } catch (RuntimeException e) {
+                    finish(future, e);
+                }
+            }, backoffMillis(attempt), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Closed
+            finish(future, e);
+        }
+    }
+
+    /**
+     * Complete a batch, releasing its permit first so that it is available by the time the caller sees the
+     * result.
+     */
+    private void finish(CompletableFuture<Void> future, Throwable error) {
+        inFlight.release();
+        if (error == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+}
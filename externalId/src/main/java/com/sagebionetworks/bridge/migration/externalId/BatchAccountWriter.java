@@ -0,0 +1,173 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a group of accounts in one transaction, through three PreparedStatements that are reused for every
+ * account and sent with executeBatch(). With Connector/J's rewriteBatchedStatements option, the language and
+ * data group inserts are sent as multi-row INSERTs. Values are bound as parameters, never concatenated into
+ * the SQL. Records are decoded with a {@link ParticipantOptionsDecoder} into one {@link ParticipantOptions}
+ * that is reused for every account in the group, and bound to the statements straight away.
+ * 
+ * If the batch fails, it is rolled back and each account is replayed in its own transaction, so one bad
+ * account does not prevent the rest of the group from migrating. Every transaction takes a permit from a
+ * shared {@link AdaptiveRateLimiter}, and lock wait timeouts and deadlocks are reported to it as throttling.
+ */
+public class BatchAccountWriter implements AccountWriter {
+
+    private final static Logger LOGGER = Logger.getLogger(BatchAccountWriter.class.getName());
+
+    // COALESCE leaves existing values in place when the option is not set, as the string SQL does by omitting
+    // the column.
+    static final String UPDATE_ACCOUNT_SQL = "UPDATE Accounts SET externalId = COALESCE(?, externalId), "
+            + "sharingScope = COALESCE(?, sharingScope), timeZone = COALESCE(?, timeZone), notifyByEmail = ?, "
+            + "migrationVersion = 1 WHERE id = ?";
+    // A language or data group the account already has is left in place rather than failing the batch, so a
+    // batch that was partly applied, or already migrated by another run, can be written again as it is. The
+    // update is a no-op on the key, rather than VALUES(), which MySQL deprecates from 8.0.20.
+    static final String INSERT_LANGUAGE_SQL = "INSERT INTO AccountLanguages (accountId, language) VALUES (?, ?) "
+            + "ON DUPLICATE KEY UPDATE accountId = accountId";
+    static final String INSERT_DATA_GROUP_SQL = "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES (?, ?) "
+            + "ON DUPLICATE KEY UPDATE accountId = accountId";
+
+    // MySQL error codes for ER_LOCK_WAIT_TIMEOUT and ER_LOCK_DEADLOCK
+    private static final int LOCK_WAIT_TIMEOUT = 1205;
+    private static final int LOCK_DEADLOCK = 1213;
+
+    // At FINE, log one in this many accounts
+    private static final int LOG_SAMPLE_RATE = 1000;
+
+    private final AdaptiveRateLimiter txLimiter;
+    private final MigrationMetrics metrics;
+    private final ParticipantOptionsDecoder decoder = new ParticipantOptionsDecoder();
+    private final AtomicLong logSample = new AtomicLong();
+
+    public BatchAccountWriter() {
+        this(AdaptiveRateLimiter.unlimited("MySQL transactions"), new MigrationMetrics());
+    }
+
+    public BatchAccountWriter(AdaptiveRateLimiter txLimiter, MigrationMetrics metrics) {
+        this.txLimiter = txLimiter;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int write(Connection connection, Map<String, String> accounts) throws IOException, SQLException,
+            InterruptedException {
+        connection.setAutoCommit(false);
+        txLimiter.acquire(1);
+        try {
+            commit(connection, accounts);
+            txLimiter.onSuccess();
+            metrics.recordMigrated(accounts.size());
+            return accounts.size();
+        } catch (SQLException e) {
+            LOGGER.warning(e.getMessage());
+            rollback(connection, e);
+        }
+        if (accounts.size() == 1) {
+            metrics.recordFailed(1);
+            return 0;
+        }
+        LOGGER.info("Batch of " + accounts.size() + " accounts failed, retrying accounts individually");
+        int written = 0;
+        for (Map.Entry<String, String> entry : accounts.entrySet()) {
+            txLimiter.acquire(1);
+            try {
+                commit(connection, Collections.singletonMap(entry.getKey(), entry.getValue()));
+                written++;
+            } catch (SQLException e) {
+                LOGGER.warning(e.getMessage());
+                rollback(connection, e);
+            }
+        }
+        metrics.recordMigrated(written);
+        metrics.recordFailed(accounts.size() - written);
+        return written;
+    }
+
+    private void commit(Connection connection, Map<String, String> accounts) throws IOException, SQLException {
+        long start = System.nanoTime();
+        writeBatch(connection, accounts);
+        connection.commit();
+        metrics.commit.record(System.nanoTime() - start);
+    }
+
+    private void rollback(Connection connection, SQLException e) throws SQLException {
+        connection.rollback();
+        metrics.recordRollback();
+        if (isLockContention(e)) {
+            txLimiter.onThrottle();
+        }
+    }
+
+    /**
+     * True if the failure (or any exception chained to it) is a lock wait timeout or a deadlock.
+     */
+    static boolean isLockContention(SQLException e) {
+        for (Throwable t : e) {
+            if (t instanceof SQLException) {
+                int code = ((SQLException) t).getErrorCode();
+                if (code == LOCK_WAIT_TIMEOUT || code == LOCK_DEADLOCK) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void writeBatch(Connection connection, Map<String, String> accounts) throws IOException,
+            SQLException {
+        try (PreparedStatement accountStatement = connection.prepareStatement(UPDATE_ACCOUNT_SQL);
+                PreparedStatement languageStatement = connection.prepareStatement(INSERT_LANGUAGE_SQL);
+                PreparedStatement dataGroupStatement = connection.prepareStatement(INSERT_DATA_GROUP_SQL)) {
+            ParticipantOptions options = new ParticipantOptions();
+            int languages = 0;
+            int dataGroups = 0;
+            for (Map.Entry<String, String> entry : accounts.entrySet()) {
+                String userId = entry.getKey();
+                long start = System.nanoTime();
+                decoder.decode(entry.getValue(), options);
+                metrics.parse.record(System.nanoTime() - start);
+                if (LOGGER.isLoggable(Level.FINE) && logSample.incrementAndGet() % LOG_SAMPLE_RATE == 1) {
+                    LOGGER.fine("Migrating user " + userId);
+                }
+
+                accountStatement.setString(1, options.getExternalId());
+                accountStatement.setString(2, options.getSharingScope());
+                accountStatement.setString(3, options.getTimeZone());
+                accountStatement.setBoolean(4, options.getNotifyByEmail());
+                accountStatement.setString(5, userId);
+                accountStatement.addBatch();
+
+                for (int i = 0; i < options.getLanguages().size(); i++) {
+                    languageStatement.setString(1, userId);
+                    languageStatement.setString(2, options.getLanguages().get(i));
+                    languageStatement.addBatch();
+                    languages++;
+                }
+                for (int i = 0; i < options.getDataGroups().size(); i++) {
+                    dataGroupStatement.setString(1, userId);
+                    dataGroupStatement.setString(2, options.getDataGroups().get(i));
+                    dataGroupStatement.addBatch();
+                    dataGroups++;
+                }
+            }
+            accountStatement.executeBatch();
+            if (languages > 0) {
+                languageStatement.executeBatch();
+            }
+            if (dataGroups > 0) {
+                dataGroupStatement.executeBatch();
+            }
+        }
+    }
+}
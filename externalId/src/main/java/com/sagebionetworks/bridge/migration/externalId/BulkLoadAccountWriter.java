@@ -0,0 +1,261 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Writes a chunk of accounts with set-based SQL instead of one statement per row. The converted rows are
+ * rendered as tab-separated text and loaded with LOAD DATA LOCAL INFILE into temporary staging tables (which
+ * are private to each connection), and then applied with one UPDATE ... JOIN on Accounts and one INSERT ...
+ * SELECT each for AccountLanguages and AccountDataGroups. Loading, applying and setting migrationVersion all
+ * happen in one transaction per chunk.
+ * <p>
+ * The result is the same as {@link BatchAccountWriter}'s: options that are not set leave the existing column
+ * values in place, and languages and data groups the account already has are kept, so a chunk can be
+ * written again after a partial failure. If a chunk fails, it is rolled back and handed to a
+ * BatchAccountWriter, which isolates the accounts that cannot be written.
+ * <p>
+ * LOAD DATA LOCAL cannot abort on bad data: it truncates values that are too long and skips rows it cannot
+ * parse, with only a warning. So the staging columns are copied from the target tables, making a value that is
+ * too long for the target too long for staging as well, and a load with any warning fails the chunk, which then
+ * goes to the fallback like any other failure.
+ */
+public class BulkLoadAccountWriter implements AccountWriter {
+
+    private final static Logger LOGGER = Logger.getLogger(BulkLoadAccountWriter.class.getName());
+
+    static final String STAGING_ACCOUNTS = "ExternalIdStagingAccounts";
+    static final String STAGING_LANGUAGES = "ExternalIdStagingLanguages";
+    static final String STAGING_DATA_GROUPS = "ExternalIdStagingDataGroups";
+
+    static final String ACCOUNT_COLUMNS = "id, externalId, sharingScope, timeZone, notifyByEmail";
+    static final String LANGUAGE_COLUMNS = "accountId, language";
+    static final String DATA_GROUP_COLUMNS = "accountId, dataGroup";
+
+    // Each staging column has the type and size of the column it is applied to. Staged languages and data
+    // groups have no key, so a record that repeats one still loads; the INSERT ... SELECT skips the repeat.
+    static final String[] CREATE_STAGING_SQL = {
+            "CREATE TEMPORARY TABLE IF NOT EXISTS " + STAGING_ACCOUNTS + " (PRIMARY KEY (id)) AS SELECT "
+                    + ACCOUNT_COLUMNS + " FROM Accounts LIMIT 0",
+            "CREATE TEMPORARY TABLE IF NOT EXISTS " + STAGING_LANGUAGES + " AS SELECT " + LANGUAGE_COLUMNS
+                    + " FROM AccountLanguages LIMIT 0",
+            "CREATE TEMPORARY TABLE IF NOT EXISTS " + STAGING_DATA_GROUPS + " AS SELECT " + DATA_GROUP_COLUMNS
+                    + " FROM AccountDataGroups LIMIT 0" };
+
+    // The field and line formats are MySQL's defaults, spelled out because appendField() depends on them
+    static final String LOAD_SQL = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE %s CHARACTER SET utf8mb4 "
+            + "FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (%s)";
+
+    // The Connector/J interfaces that declare setLocalInfileInputStream(), for versions 8, 6 and 5
+    private static final String[] LOCAL_INFILE_STATEMENT_CLASSES = { "com.mysql.cj.jdbc.JdbcStatement",
+            "com.mysql.cj.api.jdbc.Statement", "com.mysql.jdbc.Statement" };
+    private static final List<Class<?>> LOCAL_INFILE_STATEMENTS = findClasses(LOCAL_INFILE_STATEMENT_CLASSES);
+
+    static final String UPDATE_ACCOUNTS_SQL = "UPDATE Accounts a JOIN " + STAGING_ACCOUNTS + " s ON a.id = s.id "
+            + "SET a.externalId = COALESCE(s.externalId, a.externalId), "
+            + "a.sharingScope = COALESCE(s.sharingScope, a.sharingScope), "
+            + "a.timeZone = COALESCE(s.timeZone, a.timeZone), a.notifyByEmail = s.notifyByEmail, "
+            + "a.migrationVersion = 1";
+    static final String INSERT_LANGUAGES_SQL = "INSERT INTO AccountLanguages (accountId, language) "
+            + "SELECT accountId, language FROM " + STAGING_LANGUAGES
+            + " ON DUPLICATE KEY UPDATE accountId = accountId";
+    static final String INSERT_DATA_GROUPS_SQL = "INSERT INTO AccountDataGroups (accountId, dataGroup) "
+            + "SELECT accountId, dataGroup FROM " + STAGING_DATA_GROUPS
+            + " ON DUPLICATE KEY UPDATE accountId = accountId";
+
+    private final AdaptiveRateLimiter txLimiter;
+    private final MigrationMetrics metrics;
+    private final BatchAccountWriter fallback;
+    private final ParticipantOptionsDecoder decoder = new ParticipantOptionsDecoder();
+
+    public BulkLoadAccountWriter() {
+        this(AdaptiveRateLimiter.unlimited("MySQL transactions"), new MigrationMetrics());
+    }
+
+    public BulkLoadAccountWriter(AdaptiveRateLimiter txLimiter, MigrationMetrics metrics) {
+        this.txLimiter = txLimiter;
+        this.metrics = metrics;
+        this.fallback = new BatchAccountWriter(txLimiter, metrics);
+    }
+
+    @Override
+    public int write(Connection connection, Map<String, String> accounts) throws IOException, SQLException,
+            InterruptedException {
+        connection.setAutoCommit(false);
+        txLimiter.acquire(1);
+        long start = System.nanoTime();
+        try {
+            load(connection, accounts);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(getUpdateAccountsSql());
+                statement.executeUpdate(INSERT_LANGUAGES_SQL);
+                statement.executeUpdate(INSERT_DATA_GROUPS_SQL);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            LOGGER.warning("Bulk load of " + accounts.size() + " accounts failed, writing them in batches: "
+                    + e.getMessage());
+            connection.rollback();
+            metrics.recordRollback();
+            if (BatchAccountWriter.isLockContention(e)) {
+                txLimiter.onThrottle();
+            }
+            return fallback.write(connection, accounts);
+        }
+        metrics.commit.record(System.nanoTime() - start);
+        txLimiter.onSuccess();
+        metrics.recordMigrated(accounts.size());
+        return accounts.size();
+    }
+
+    /**
+     * The statement that applies the staged account rows. MySQL's multi-table UPDATE syntax is not portable, so
+     * this can be replaced for other databases.
+     */
+    protected String getUpdateAccountsSql() {
+        return UPDATE_ACCOUNTS_SQL;
+    }
+
+    private void load(Connection connection, Map<String, String> accounts) throws IOException, SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : CREATE_STAGING_SQL) {
+                statement.execute(sql);
+            }
+            // Left over from a chunk that was written by the fallback
+            statement.executeUpdate("DELETE FROM " + STAGING_ACCOUNTS);
+            statement.executeUpdate("DELETE FROM " + STAGING_LANGUAGES);
+            statement.executeUpdate("DELETE FROM " + STAGING_DATA_GROUPS);
+        }
+
+        StringBuilder accountRows = new StringBuilder();
+        StringBuilder languageRows = new StringBuilder();
+        StringBuilder dataGroupRows = new StringBuilder();
+        ParticipantOptions options = new ParticipantOptions();
+        for (Map.Entry<String, String> entry : accounts.entrySet()) {
+            String userId = entry.getKey();
+            long start = System.nanoTime();
+            decoder.decode(entry.getValue(), options);
+            metrics.parse.record(System.nanoTime() - start);
+
+            appendField(accountRows, userId).append('\t');
+            appendField(accountRows, options.getExternalId()).append('\t');
+            appendField(accountRows, options.getSharingScope()).append('\t');
+            appendField(accountRows, options.getTimeZone()).append('\t');
+            accountRows.append(options.getNotifyByEmail() ? '1' : '0').append('\n');
+            for (int i = 0; i < options.getLanguages().size(); i++) {
+                appendField(languageRows, userId).append('\t');
+                appendField(languageRows, options.getLanguages().get(i)).append('\n');
+            }
+            for (int i = 0; i < options.getDataGroups().size(); i++) {
+                appendField(dataGroupRows, userId).append('\t');
+                appendField(dataGroupRows, options.getDataGroups().get(i)).append('\n');
+            }
+        }
+        load(connection, STAGING_ACCOUNTS, ACCOUNT_COLUMNS, bytes(accountRows));
+        if (languageRows.length() > 0) {
+            load(connection, STAGING_LANGUAGES, LANGUAGE_COLUMNS, bytes(languageRows));
+        }
+        if (dataGroupRows.length() > 0) {
+            load(connection, STAGING_DATA_GROUPS, DATA_GROUP_COLUMNS, bytes(dataGroupRows));
+        }
+    }
+
+    private void load(Connection connection, String table, String columns, byte[] rows) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            loadRows(statement, table, columns, rows);
+            SQLWarning warning = statement.getWarnings();
+            if (warning != null) {
+                throw new SQLException("Loading " + table + " gave a warning: " + warning.getMessage(), warning);
+            }
+        }
+    }
+
+    /**
+     * Load tab-separated rows into a staging table. Connector/J sends the rows from memory in place of a file.
+     */
+    protected void loadRows(Statement statement, String table, String columns, byte[] rows) throws SQLException {
+        setLocalInfileInputStream(statement, new ByteArrayInputStream(rows));
+        statement.execute(String.format(LOAD_SQL, table, columns));
+    }
+
+    /**
+     * Have the next LOAD DATA LOCAL INFILE on the statement read from the stream. The method is on a different
+     * interface in each major version of Connector/J, so it is looked up on whichever of them the driver has.
+     * A driver without any of them, or one that rejects the stream, fails the load with an SQLException, which
+     * sends the chunk to the fallback writer.
+     */
+    static void setLocalInfileInputStream(Statement statement, InputStream stream) throws SQLException {
+        for (Class<?> type : LOCAL_INFILE_STATEMENTS) {
+            if (statement.isWrapperFor(type)) {
+                try {
+                    type.getMethod("setLocalInfileInputStream", InputStream.class).invoke(statement.unwrap(type),
+                            stream);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    throw new SQLException("Could not stream rows to " + type.getName(), e);
+                }
+                return;
+            }
+        }
+        throw new SQLException(statement.getClass().getName() + " cannot load rows from a stream");
+    }
+
+    private static List<Class<?>> findClasses(String[] classNames) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (String className : classNames) {
+            try {
+                classes.add(Class.forName(className));
+            } catch (ClassNotFoundException e) {
+                // Not this version of the driver
+            }
+        }
+        return Collections.unmodifiableList(classes);
+    }
+
+    /**
+     * Append a value in LOAD DATA's default text format: NULL is \N, and backslashes, tabs and line breaks are
+     * escaped with a backslash.
+     */
+    static StringBuilder appendField(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb.append("\\N");
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\0':
+                sb.append("\\0");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    private static byte[] bytes(StringBuilder rows) {
+        return rows.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,351 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Records how far each partition has been migrated, so a run that dies can be resumed without rescanning the
+ * Accounts table. A worker updates its partition's position after every page has been committed, and the
+ * whole checkpoint is rewritten to disk at most once per save interval (and on {@link #flush()}): the JSON is
+ * written to a temporary file, forced to disk, and atomically renamed over the previous checkpoint, and then the
+ * directory is forced so that the rename is durable too. A crash at any point leaves either the old or the new
+ * checkpoint intact, never a partial one. A resumed run may therefore repeat up to one interval's worth of
+ * pages, which is safe because writes are idempotent.
+ * <p>
+ * The partitions' boundaries are saved with their positions, so a resumed run reads exactly the ranges of
+ * accounts the first run did, even if accounts have been added since.
+ * <p>
+ * A scan run ({@link ScanMigration}) keeps a checkpoint of its own kind, with a position for each segment of the
+ * scan rather than for each partition; the two kinds cannot be resumed as each other.
+ */
+public class Checkpoint {
+
+    private final static Logger LOGGER = Logger.getLogger(Checkpoint.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    static final long DEFAULT_SAVE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The position of one partition: the last account ID whose page was committed, and running totals.
+     */
+    public static final class Position {
+        private final String lastId;
+        private final long read;
+        private final long migrated;
+
+        Position(String lastId, long read, long migrated) {
+            this.lastId = lastId;
+            this.read = read;
+            this.migrated = migrated;
+        }
+
+        public String getLastId() {
+            return lastId;
+        }
+
+        public long getRead() {
+            return read;
+        }
+
+        public long getMigrated() {
+            return migrated;
+        }
+    }
+
+    private static final Position START = new Position("", 0, 0);
+
+    private final Path file;
+    private final List<AccountPartition> partitions;
+    // 0 unless this is a scan checkpoint, which has no partitions
+    private final int scanSegments;
+    private final long saveIntervalNanos;
+    private final Map<Integer, Position> positions = new HashMap<>();
+    // Held while writing the file, so only one thread at a time waits on the disk
+    private final ReentrantLock saveLock = new ReentrantLock();
+    private boolean dirty;
+    private long lastSaveNanos;
+
+    protected Checkpoint(Path file, List<AccountPartition> partitions) {
+        this(file, partitions, DEFAULT_SAVE_INTERVAL_MILLIS);
+    }
+
+    protected Checkpoint(Path file, List<AccountPartition> partitions, long saveIntervalMillis) {
+        this(file, partitions, 0, saveIntervalMillis);
+    }
+
+    private Checkpoint(Path file, List<AccountPartition> partitions, int scanSegments, long saveIntervalMillis) {
+        this.file = file;
+        this.partitions = partitions;
+        this.scanSegments = scanSegments;
+        this.saveIntervalNanos = TimeUnit.MILLISECONDS.toNanos(saveIntervalMillis);
+        this.lastSaveNanos = System.nanoTime() - saveIntervalNanos;
+    }
+
+    /**
+     * A new checkpoint, starting every partition from the beginning, that will be saved to the given file
+     * (replacing any existing checkpoint there).
+     */
+    public static Checkpoint create(Path file, List<AccountPartition> partitions) {
+        return new Checkpoint(file, partitions);
+    }
+
+    /**
+     * As {@link #create(Path, List)}, saving at most once every saveIntervalMillis until flushed.
+     */
+    public static Checkpoint create(Path file, List<AccountPartition> partitions, long saveIntervalMillis) {
+        return new Checkpoint(file, partitions, saveIntervalMillis);
+    }
+
+    /**
+     * A checkpoint that tracks positions but is never saved.
+     */
+    public static Checkpoint inMemory(List<AccountPartition> partitions) {
+        return new Checkpoint(null, partitions);
+    }
+
+    /**
+     * Load a saved checkpoint, with the partitions it was saved with. The number of partitions must match the
+     * one asked for, so that a change in the configured number of workers is not silently ignored.
+     */
+    public static Checkpoint load(Path file, int partitions) throws IOException {
+        return read(file, file, partitions);
+    }
+
+    /**
+     * Start from the positions in a saved checkpoint, but never save over it (for dry runs, which must not
+     * move a real run's position).
+     */
+    public static Checkpoint loadInMemory(Path file, int partitions) throws IOException {
+        return read(file, null, partitions);
+    }
+
+    /**
+     * A new checkpoint for a scan with the given number of segments, starting each from the beginning, that will be
+     * saved to the given file (replacing any existing checkpoint there).
+     */
+    public static Checkpoint createScan(Path file, int segments) {
+        return new Checkpoint(file, Collections.<AccountPartition> emptyList(), segments,
+                DEFAULT_SAVE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * A scan checkpoint that tracks positions but is never saved.
+     */
+    public static Checkpoint inMemoryScan(int segments) {
+        return createScan(null, segments);
+    }
+
+    /**
+     * Load a saved scan checkpoint. The number of segments must match the one asked for, as a record's segment
+     * depends on the total number of segments.
+     */
+    public static Checkpoint loadScan(Path file, int segments) throws IOException {
+        return readScan(file, file, segments);
+    }
+
+    /**
+     * As {@link #loadScan(Path, int)}, but never saving over the file.
+     */
+    public static Checkpoint loadScanInMemory(Path file, int segments) throws IOException {
+        return readScan(file, null, segments);
+    }
+
+    private static Checkpoint readScan(Path file, Path saveTo, int segments) throws IOException {
+        JsonNode node = MAPPER.readTree(file.toFile());
+        JsonNode savedSegments = node.get("scanSegments");
+        if (savedSegments == null) {
+            throw new IllegalStateException("Checkpoint " + file + " was not written by a scan run");
+        }
+        if (savedSegments.intValue() != segments) {
+            throw new IllegalStateException("Checkpoint " + file + " was written with " + savedSegments.intValue()
+                    + " scan segment(s), cannot resume with " + segments);
+        }
+        Checkpoint checkpoint = new Checkpoint(saveTo, Collections.<AccountPartition> emptyList(), segments,
+                DEFAULT_SAVE_INTERVAL_MILLIS);
+        checkpoint.readPositions(node);
+        return checkpoint;
+    }
+
+    private static Checkpoint read(Path file, Path saveTo, int partitions) throws IOException {
+        JsonNode node = MAPPER.readTree(file.toFile());
+        if (node.has("scanSegments")) {
+            throw new IllegalStateException("Checkpoint " + file + " was written by a scan run");
+        }
+        int savedPartitions = node.get("partitions").intValue();
+        if (savedPartitions != partitions) {
+            throw new IllegalStateException("Checkpoint " + file + " was written with " + savedPartitions
+                    + " partition(s), cannot resume with " + partitions);
+        }
+        JsonNode boundaries = node.get("boundaries");
+        if (boundaries == null) {
+            throw new IllegalStateException("Checkpoint " + file + " has no partition boundaries, cannot resume");
+        }
+        List<String> boundaryIds = new ArrayList<>();
+        for (JsonNode boundary : boundaries) {
+            boundaryIds.add(boundary.textValue());
+        }
+        Checkpoint checkpoint = new Checkpoint(saveTo, AccountPartition.fromBoundaries(boundaryIds));
+        checkpoint.readPositions(node);
+        return checkpoint;
+    }
+
+    private void readPositions(JsonNode node) {
+        for (Iterator<Map.Entry<String, JsonNode>> i = node.get("positions").fields(); i.hasNext();) {
+            Map.Entry<String, JsonNode> entry = i.next();
+            JsonNode position = entry.getValue();
+            positions.put(Integer.parseInt(entry.getKey()), new Position(position.get("lastId").textValue(),
+                    position.get("read").longValue(), position.get("migrated").longValue()));
+        }
+    }
+
+    public List<AccountPartition> getPartitions() {
+        return partitions;
+    }
+
+    public Position get(AccountPartition partition) {
+        return get(partition.getIndex());
+    }
+
+    /**
+     * The position of the partition, or scan segment, with the given index. One that has not been started has
+     * an empty last ID.
+     */
+    public synchronized Position get(int index) {
+        Position position = positions.get(index);
+        return (position == null) ? START : position;
+    }
+
+    /**
+     * Called before each batch of the partition is written, with the connection it is to be written through.
+     * Returns the connection the writer should use: this one, unless a subclass wraps it to fence the writes. A
+     * subclass may also throw to stop the run instead.
+     */
+    public Connection beforeWrite(AccountPartition partition, Connection connection) {
+        return connection;
+    }
+
+    /**
+     * Move a partition's position forward. The file is saved if the save interval has passed since it was last
+     * saved and no other thread is saving it; otherwise the position is saved later, or by {@link #flush()}.
+     */
+    public void update(AccountPartition partition, String lastId, long read, long migrated) throws IOException {
+        update(partition.getIndex(), lastId, read, migrated);
+    }
+
+    /**
+     * Move the position of the partition, or scan segment, with the given index forward.
+     */
+    public void update(int index, String lastId, long read, long migrated) throws IOException {
+        boolean due;
+        synchronized (this) {
+            positions.put(index, new Position(lastId, read, migrated));
+            dirty = true;
+            due = (file != null) && System.nanoTime() - lastSaveNanos >= saveIntervalNanos;
+        }
+        if (due && saveLock.tryLock()) {
+            try {
+                save();
+            } finally {
+                saveLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Save any positions not yet saved, waiting for a save in progress on another thread.
+     */
+    public void flush() throws IOException {
+        if (file == null) {
+            return;
+        }
+        saveLock.lock();
+        try {
+            save();
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    // Only called with saveLock held; the monitor is held just long enough to copy the positions
+    private void save() throws IOException {
+        ObjectNode node = MAPPER.createObjectNode();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            lastSaveNanos = System.nanoTime();
+            if (scanSegments > 0) {
+                node.put("scanSegments", scanSegments);
+            } else {
+                node.put("partitions", partitions.size());
+                ArrayNode boundaries = node.putArray("boundaries");
+                for (String boundary : AccountPartition.getBoundaries(partitions)) {
+                    boundaries.add(boundary);
+                }
+            }
+            node.put("updatedOn", System.currentTimeMillis());
+            ObjectNode positionsNode = node.putObject("positions");
+            for (Map.Entry<Integer, Position> entry : positions.entrySet()) {
+                ObjectNode position = positionsNode.putObject(Integer.toString(entry.getKey()));
+                position.put("lastId", entry.getValue().getLastId());
+                position.put("read", entry.getValue().getRead());
+                position.put("migrated", entry.getValue().getMigrated());
+            }
+        }
+        try {
+            write(MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(node));
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    private void write(byte[] json) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(json);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The rename itself is only durable once the directory entry is on disk
+        Path directory = file.toAbsolutePath().getParent();
+        FileChannel directoryChannel;
+        try {
+            directoryChannel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Some platforms (e.g. Windows) cannot open a directory; their renames are already durable
+            LOGGER.fine("Cannot sync directory " + directory + ": " + e);
+            return;
+        }
+        try (FileChannel channel = directoryChannel) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.Arrays;
+
+/**
+ * The values in a comma-separated string, recorded as offsets into the original string rather than as
+ * substrings, so parsing allocates nothing (once the offset arrays have grown to the longest list seen).
+ * Values are split and filtered exactly as {@link Utils#getList} does with its "\s*,\s*" regular expression:
+ * whitespace next to a comma is removed, whitespace at either end of the string is kept, and blank values are
+ * dropped.
+ */
+public final class CommaSeparatedList {
+
+    private String source;
+    private int[] starts = new int[4];
+    private int[] ends = new int[4];
+    private int size;
+
+    public void clear() {
+        source = null;
+        size = 0;
+    }
+
+    public void parse(String value) {
+        clear();
+        if (value == null) {
+            return;
+        }
+        source = value;
+        int length = value.length();
+        int start = 0;
+        while (true) {
+            int comma = value.indexOf(',', start);
+            int end = (comma < 0) ? length : comma;
+            int valueStart = start;
+            int valueEnd = end;
+            if (start > 0) {
+                while (valueStart < valueEnd && isRegexSpace(value.charAt(valueStart))) {
+                    valueStart++;
+                }
+            }
+            if (comma >= 0) {
+                while (valueEnd > valueStart && isRegexSpace(value.charAt(valueEnd - 1))) {
+                    valueEnd--;
+                }
+            }
+            if (!isBlank(value, valueStart, valueEnd)) {
+                add(valueStart, valueEnd);
+            }
+            if (comma < 0) {
+                return;
+            }
+            start = comma + 1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The value at the given index. This is the only method that allocates.
+     */
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return source.substring(starts[index], ends[index]);
+    }
+
+    private void add(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    // The characters matched by \s in a Java regular expression
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // As StringUtils.isBlank()
+    private static boolean isBlank(String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
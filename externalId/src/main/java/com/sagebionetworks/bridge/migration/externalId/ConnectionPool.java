@@ -0,0 +1,110 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * A minimal bounded pool of JDBC connections. At most <i>maxSize</i> connections are handed out at once;
+ * callers block in borrow() until one is returned. Connections are opened lazily and checked for validity
+ * before they are reused. A released connection is reset first: any transaction a caller left open (e.g. because
+ * it failed part way through) is rolled back, releasing its locks, and autocommit is turned back on. A connection
+ * that cannot be reset is closed instead.
+ * <p>
+ * close() closes every connection the pool opened, including any still borrowed; one released after that is
+ * closed rather than pooled.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private final static Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    private final Set<Connection> opened = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    public ConnectionPool(int maxSize, ConnectionFactory factory) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.factory = factory;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public Connection borrow() throws SQLException, InterruptedException {
+        permits.acquire();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Connection pool is closed");
+            }
+            Connection connection = idle.poll();
+            while (connection != null && !connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                discard(connection);
+                connection = idle.poll();
+            }
+            if (connection == null) {
+                connection = factory.create();
+                opened.add(connection);
+            }
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Connection connection) {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (closed) {
+                discard(connection);
+            } else {
+                idle.offer(connection);
+            }
+        } catch (SQLException e) {
+            LOGGER.warning("Closing a connection that could not be reset: " + e.getMessage());
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        idle.clear();
+        for (Connection connection : opened) {
+            discard(connection);
+        }
+    }
+
+    private void discard(Connection connection) {
+        // Only the first caller closes it, e.g. when close() races a release
+        if (opened.remove(connection)) {
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warning(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Prints the SQL that would be executed for each account, in the literal string format produced by
+ * {@link Utils}, without modifying the database.
+ */
+public class DryRunAccountWriter implements AccountWriter {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final PrintStream out;
+    private final MigrationMetrics metrics;
+
+    public DryRunAccountWriter(PrintStream out, MigrationMetrics metrics) {
+        this.out = out;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int write(Connection connection, Map<String, String> accounts) throws Exception {
+        List<String> statements = new ArrayList<>();
+        for (Map.Entry<String, String> entry : accounts.entrySet()) {
+            JsonNode node = MAPPER.readTree(entry.getValue());
+            Utils.optionsToAccountUpdateSQL(statements, entry.getKey(), node);
+            Utils.optionsToLanguagesUpdateSQL(statements, entry.getKey(), node);
+            Utils.optionsToDataGroupsUpdateSQL(statements, entry.getKey(), node);
+        }
+        // Workers share the stream; keep each group's statements together
+        synchronized (out) {
+            for (String sql : statements) {
+                out.println(sql);
+            }
+        }
+        metrics.recordMigrated(accounts.size());
+        return accounts.size();
+    }
+}
@@ -1,130 +1,355 @@
 package com.sagebionetworks.bridge.migration.externalId;
 
 import java.io.FileInputStream;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
-import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
-import com.amazonaws.services.dynamodbv2.model.GetItemResult;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
 public class ExternalIdApplication {
 
     private final static Logger LOGGER = Logger.getLogger(ExternalIdApplication.class.getName());
 
-    private static final ObjectMapper MAPPER = new ObjectMapper();
-    private static final JsonNode EMPTY_NODE = JsonNodeFactory.instance.objectNode();
-
-    private Connection connection;
-    private AmazonDynamoDBClient client;
-    private String ddbTable;
+    private ConnectionPool pool;
+    private Supplier<ParticipantOptionsSource> fetcherSupplier;
+    private AccountWriter writer;
+    private Checkpoint checkpoint;
+    private MigrationMetrics metrics;
+    private int pageSize;
     private int limit;
+    private int workers;
+    private int writers;
+    private int queueDepth;
+    private int batchSize;
+    private boolean virtualThreads;
+
+    /** What a run does. */
+    public enum Command {
+        MIGRATE, WRITE_SNAPSHOT, VERIFY
+    }
+
+    /**
+     * Creates the DynamoDB clients a run reads records with, so that a load test can serve them itself.
+     */
+    public interface DynamoDBClients {
+        /**
+         * @param maxConnections
+         *            the number of threads that will share the client, or 0 for a client used by one worker
+         */
+        AmazonDynamoDBClient create(int maxConnections);
+
+        AmazonDynamoDBAsyncClient createAsync(int maxConcurrency);
+    }
 
+    /**
+     * Usage: ExternalIdApplication &lt;properties file&gt; [--resume] [--source=get|scan|snapshot]
+     * [--write-snapshot] [--verify]
+     * <p>
+     * --write-snapshot scans the ParticipantOptions table into the file named by snapshot.file and exits, without
+     * touching MySQL. A later run with --source=snapshot then reads records from that file instead of DynamoDB.
+     * <p>
+     * --verify compares the migrated accounts with their records instead of migrating, using one thread per
+     * worker, and writes the differences to the file named by verify.file.
+     */
     public static void main(String[] args) throws Exception {
         LOGGER.info("Loading config from file: " + args[0]);
 
         Properties properties = new Properties();
         properties.load(new FileInputStream(args[0]));
 
-        String ddbTable = properties.getProperty("ddb.table");
-        
-        int limit = Integer.parseInt(properties.getProperty("limit"));
-
-        String url = properties.getProperty("mysql.url");
-        String username = properties.getProperty("mysql.username");
-        String password = properties.getProperty("mysql.password");
-        boolean useSsl = Boolean.parseBoolean(properties.getProperty("mysql.useSsl"));
-        Connection connection = Utils.establishConnection(url, username, password, useSsl);
+        boolean resume = false;
+        boolean writeSnapshot = false;
+        boolean verify = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--resume".equals(args[i])) {
+                resume = true;
+            } else if ("--write-snapshot".equals(args[i])) {
+                writeSnapshot = true;
+            } else if ("--verify".equals(args[i])) {
+                verify = true;
+            } else if (args[i].startsWith("--source=")) {
+                properties.setProperty("source", args[i].substring("--source=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        Command command = writeSnapshot ? Command.WRITE_SNAPSHOT : (verify ? Command.VERIFY : Command.MIGRATE);
 
         String key = properties.getProperty("aws.key");
         String secretKey = properties.getProperty("aws.secret.key");
-        AmazonDynamoDBClient client = Utils.establishDynamoDBConnection(key, secretKey);
+        DynamoDBClients clients = new DynamoDBClients() {
+            @Override
+            public AmazonDynamoDBClient create(int maxConnections) {
+                return (maxConnections > 0) ? Utils.establishDynamoDBConnection(key, secretKey, maxConnections)
+                        : Utils.establishDynamoDBConnection(key, secretKey);
+            }
 
-        new ExternalIdApplication(ddbTable, connection, client, limit).run();
+            @Override
+            public AmazonDynamoDBAsyncClient createAsync(int maxConcurrency) {
+                return Utils.establishDynamoDBAsyncConnection(key, secretKey, maxConcurrency);
+            }
+        };
+        execute(properties, command, resume, clients, connectionFactory(properties));
     }
 
-    public ExternalIdApplication(String ddbTable, Connection connection, AmazonDynamoDBClient client, int limit) {
-        this.ddbTable = ddbTable;
-        this.connection = connection;
-        this.client = client;
-        this.limit = limit;
+    /**
+     * Connects to the MySQL database named by the mysql.* properties.
+     */
+    public static ConnectionPool.ConnectionFactory connectionFactory(Properties properties) {
+        String url = properties.getProperty("mysql.url");
+        String username = properties.getProperty("mysql.username");
+        String password = properties.getProperty("mysql.password");
+        boolean useSsl = Boolean.parseBoolean(properties.getProperty("mysql.useSsl"));
+        boolean rewriteBatchedStatements = Boolean
+                .parseBoolean(properties.getProperty("mysql.rewriteBatchedStatements", "true"));
+        boolean bulk = "bulk".equals(properties.getProperty("writer"));
+        return () -> Utils.establishConnection(url, username, password, useSsl, rewriteBatchedStatements, bulk);
     }
 
-    void run() throws Exception {
-        Map<String, String> userIds = collectAccountsToMigrate();
-
-        LOGGER.info("Found " + userIds.size() + " records (limit = "+limit+").");
-        for (Map.Entry<String, String> entry : userIds.entrySet()) {
-            migrateAccount(entry);
-            Thread.sleep(200);
+    /**
+     * Wires up and runs the command the properties describe, reading records through the given clients and
+     * writing through the given connections.
+     *
+     * @return the metrics of the run
+     */
+    public static MigrationMetrics execute(Properties properties, Command command, boolean resume,
+            DynamoDBClients clients, ConnectionPool.ConnectionFactory connections) throws Exception {
+        String ddbTable = properties.getProperty("ddb.table");
+        
+        int limit = Integer.parseInt(properties.getProperty("limit", "0"));
+        int pageSize = Integer.parseInt(properties.getProperty("pageSize", "1000"));
+        boolean bulk = "bulk".equals(properties.getProperty("writer"));
+        // Set-based loads pay off with larger transactions
+        int batchSize = Integer.parseInt(properties.getProperty("batchSize", bulk ? "1000" : "100"));
+        int workers = Integer.parseInt(properties.getProperty("workers", "1"));
+        int writers = Integer.parseInt(properties.getProperty("writers", Integer.toString(workers)));
+        boolean async = Boolean.parseBoolean(properties.getProperty("ddb.async"));
+        boolean virtualThreads = "virtual".equals(properties.getProperty("threads"));
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            throw new IllegalStateException("threads=virtual needs Java 21 or later, this is Java "
+                    + System.getProperty("java.version"));
         }
-        connection.close();
-    }
+        int maxConcurrency = Integer.parseInt(properties.getProperty("ddb.maxConcurrency", "100"));
+        // Queued batches may still be waiting on DynamoDB in async and virtual thread modes, so the queue has to
+        // be deep enough to keep every permitted request in flight
+        int queueDepth = Integer.parseInt(properties.getProperty("queueDepth",
+                Integer.toString((async || virtualThreads) ? maxConcurrency : 2 * writers)));
+        // A virtual writer thread costs next to nothing, so every queued batch can have one waiting for a
+        // connection; the pool, sized from writers, is what limits concurrent transactions
+        int writerThreads = virtualThreads ? Math.max(writers, queueDepth) : writers;
+        int shards = Integer.parseInt(properties.getProperty("shards", "0"));
+        boolean dryRun = Boolean.parseBoolean(properties.getProperty("dryRun"));
+        if (dryRun && shards > 0) {
+            // Leases record progress in MySQL, so a dry run would mark shards as migrated
+            throw new IllegalArgumentException("dryRun is not supported in shard mode");
+        }
+        // One more connection than there are writers, so readers can page through the Accounts table while
+        // every writer is committing, and another for lease heartbeats in shard mode
+        int poolSize = Integer.parseInt(properties.getProperty("mysql.poolSize",
+                Integer.toString(writers + ((shards > 0) ? 2 : 1))));
 
-    protected void migrateAccount(Map.Entry<String, String> entry) throws Exception, SQLException {
-        LOGGER.info("Migrating user " + entry.getKey());
+        ConnectionPool pool = new ConnectionPool(poolSize, connections);
 
-        String userId = entry.getKey();
-        String healthCode = entry.getValue();
-        JsonNode node = getDynamoDBRecord(healthCode);
+        MigrationMetrics metrics = new MigrationMetrics();
+        AdaptiveRateLimiter txLimiter = new AdaptiveRateLimiter("MySQL transactions",
+                Double.parseDouble(properties.getProperty("mysql.maxTxPerSecond", "0")));
+        AccountWriter writer = bulk ? new BulkLoadAccountWriter(txLimiter, metrics)
+                : new BatchAccountWriter(txLimiter, metrics);
+        if (dryRun) {
+            String dryRunFile = properties.getProperty("dryRun.file");
+            LOGGER.info("Dry run, writing SQL to " + ((dryRunFile == null) ? "stdout" : dryRunFile));
+            writer = new DryRunAccountWriter(
+                    (dryRunFile == null) ? System.out : new PrintStream(new FileOutputStream(dryRunFile), true),
+                    metrics);
+        }
 
-        connection.setAutoCommit(false);
-        try (Statement statement = connection.createStatement()) {
-            List<String> statements = new ArrayList<>();
-            Utils.optionsToAccountUpdateSQL(statements, userId, node);
-            Utils.optionsToLanguagesUpdateSQL(statements, userId, node);
-            Utils.optionsToDataGroupsUpdateSQL(statements, userId, node);
+        // The limiter takes a permit per key requested (or item scanned), which is not a read capacity unit: an
+        // eventually consistent read of a small item costs half a unit, and a large item several
+        String maxKeysPerSecond = properties.getProperty("ddb.maxKeysPerSecond");
+        if (maxKeysPerSecond == null && properties.getProperty("ddb.maxReadUnitsPerSecond") != null) {
+            LOGGER.warning("ddb.maxReadUnitsPerSecond is deprecated (it limits keys, not read units), "
+                    + "use ddb.maxKeysPerSecond instead");
+            maxKeysPerSecond = properties.getProperty("ddb.maxReadUnitsPerSecond");
+        }
+        AdaptiveRateLimiter readLimiter = new AdaptiveRateLimiter("DynamoDB reads",
+                Double.parseDouble((maxKeysPerSecond == null) ? "0" : maxKeysPerSecond));
+        String source = properties.getProperty("source", "get");
+        Path snapshotFile = Paths.get(properties.getProperty("snapshot.file", "externalId.snapshot"));
+        Path checkpointFile = Paths.get(properties.getProperty("checkpoint.file", "externalId.checkpoint"));
+        int segments = Integer.parseInt(properties.getProperty("ddb.scanSegments", Integer.toString(workers)));
+        Supplier<ParticipantOptionsSource> fetcherSupplier;
+        // Shared by every worker, and closed when the command finishes
+        AsyncParticipantOptionsFetcher asyncFetcher = null;
+        if ("snapshot".equals(source)) {
+            LOGGER.info("Reading ParticipantOptions from snapshot " + snapshotFile);
+            ParticipantOptionsSource fetcher = new SnapshotParticipantOptionsFetcher(
+                    ParticipantOptionsSnapshot.open(snapshotFile));
+            fetcherSupplier = () -> fetcher;
+        } else if (async) {
+            // One async client, and one cap on requests in flight, shared by every worker
+            LOGGER.info("Fetching asynchronously with up to " + maxConcurrency + " requests in flight");
+            AsyncParticipantOptionsFetcher fetcher = new AsyncParticipantOptionsFetcher(
+                    clients.createAsync(maxConcurrency), ddbTable, maxConcurrency, readLimiter, metrics);
+            asyncFetcher = fetcher;
+            fetcherSupplier = () -> fetcher;
+        } else if (virtualThreads) {
+            // Blocking requests, each on its own virtual thread, with one cap on requests in flight
+            LOGGER.info("Fetching on virtual threads with up to " + maxConcurrency + " requests in flight");
+            ParticipantOptionsSource fetcher = new VirtualThreadParticipantOptionsFetcher(
+                    clients.create(maxConcurrency), ddbTable, maxConcurrency, readLimiter, metrics,
+                    VirtualThreads.newExecutor());
+            fetcherSupplier = () -> fetcher;
+        } else {
+            // Each worker gets its own client, but they all share the read limiter
+            fetcherSupplier = () -> new ParticipantOptionsFetcher(clients.create(0), ddbTable, readLimiter, metrics);
+        }
 
-            for (String sql : statements) {
-                statement.executeUpdate(sql);
+        try {
+            if (command == Command.WRITE_SNAPSHOT) {
+                int records = SnapshotWriter.writeFromScan(snapshotFile, fetcherSupplier, segments);
+                LOGGER.info("Wrote " + records + " records to snapshot " + snapshotFile);
+                pool.close();
+                return metrics;
+            }
+            if (command == Command.VERIFY) {
+                Path verifyFile = Paths.get(properties.getProperty("verify.file", "externalId.verify.tsv"));
+                try {
+                    new MigrationVerifier(pool, fetcherSupplier, AccountPartition.split(pool, workers), pageSize,
+                            verifyFile).call();
+                } finally {
+                    pool.close();
+                }
+                return metrics;
             }
-            connection.commit();
-        } catch (SQLException e) {
-            LOGGER.warning(e.getMessage());
-            connection.rollback();
-        }
-    }
 
-    protected Map<String, String> collectAccountsToMigrate() throws SQLException {
-        Map<String, String> userIds = new HashMap<>();
-        connection.setAutoCommit(true);
-        try (Statement statement = connection.createStatement()) {
-            ResultSet results = statement.executeQuery("SELECT id, healthCode, migrationVersion "
-                    + "FROM Accounts WHERE migrationVersion != 1 LIMIT " + limit);
-            while (results.next()) {
-                String userId = results.getString("id");
-                String healthCode = results.getString("healthCode");
-                userIds.put(userId, healthCode);
+            long backlog = AccountCursor.countBacklog(pool);
+            metrics.setBacklog((limit > 0) ? Math.min(limit, backlog) : backlog);
+            LOGGER.info("Found " + backlog + " records to migrate (limit = " + limit + ").");
+            metrics.startReporting(Long.parseLong(properties.getProperty("metrics.intervalSeconds", "30")));
+            try {
+                if ("scan".equals(source)) {
+                    try {
+                        Checkpoint checkpoint;
+                        if (dryRun) {
+                            checkpoint = resume ? Checkpoint.loadScanInMemory(checkpointFile, segments)
+                                    : Checkpoint.inMemoryScan(segments);
+                        } else if (resume) {
+                            LOGGER.info("Resuming scan from checkpoint " + checkpointFile);
+                            checkpoint = Checkpoint.loadScan(checkpointFile, segments);
+                        } else {
+                            checkpoint = Checkpoint.createScan(checkpointFile, segments);
+                        }
+                        int migrated = new ScanMigration(pool, fetcherSupplier, writer, checkpoint, metrics, segments,
+                                pageSize, batchSize, limit, virtualThreads).call();
+                        LOGGER.info("Migrated " + migrated + " records with " + segments + " scan segment(s).");
+                    } finally {
+                        pool.close();
+                    }
+                } else if (shards > 0) {
+                    String owner = properties.getProperty("shard.owner",
+                            ManagementFactory.getRuntimeMXBean().getName());
+                    long leaseMillis = TimeUnit.SECONDS
+                            .toMillis(Long.parseLong(properties.getProperty("shard.leaseSeconds", "60")));
+                    if (limit > 0) {
+                        LOGGER.warning("limit is ignored in shard mode");
+                    }
+                    ShardLeases leases = new ShardLeases(pool, shards, owner, leaseMillis);
+                    try {
+                        leases.initialize();
+                        int migrated = new ShardedMigration(leases, pool, fetcherSupplier, writer, metrics,
+                                writerThreads, queueDepth, pageSize, batchSize, virtualThreads).call();
+                        LOGGER.info(owner + " migrated " + migrated + " records; all " + shards
+                                + " shards are finished.");
+                    } finally {
+                        leases.close();
+                        pool.close();
+                    }
+                } else {
+                    Checkpoint checkpoint;
+                    if (dryRun) {
+                        // A dry run writes nothing, so it must not move the real run's position
+                        checkpoint = resume ? Checkpoint.loadInMemory(checkpointFile, workers)
+                                : Checkpoint.inMemory(AccountPartition.split(pool, workers));
+                    } else if (resume) {
+                        LOGGER.info("Resuming from checkpoint " + checkpointFile);
+                        checkpoint = Checkpoint.load(checkpointFile, workers);
+                    } else {
+                        checkpoint = Checkpoint.create(checkpointFile, AccountPartition.split(pool, workers));
+                    }
+                    new ExternalIdApplication(pool, fetcherSupplier, writer, checkpoint, metrics, pageSize, limit,
+                            workers, writerThreads, queueDepth, batchSize, virtualThreads).run();
+                }
+            } finally {
+                metrics.stopReporting();
+                metrics.writeJson(Paths.get(properties.getProperty("metrics.file", "externalId.metrics.json")));
+            }
+            return metrics;
+        } finally {
+            if (asyncFetcher != null) {
+                asyncFetcher.close();
             }
         }
-        return userIds;
     }
 
-    protected JsonNode getDynamoDBRecord(String healthCode) throws Exception {
-        Map<String, AttributeValue> key = new HashMap<>();
-        key.put("healthDataCode", new AttributeValue().withS(healthCode));
-
-        GetItemRequest request = new GetItemRequest().withTableName(ddbTable).withKey(key).withAttributesToGet("data",
-                "studyKey");
-
-        GetItemResult result = client.getItem(request);
+    /**
+     * @param fetcherSupplier
+     *            called once per worker, so that each worker has its own DynamoDB client
+     * @param checkpoint
+     *            the position to start each partition from, updated as the run progresses
+     * @param pageSize
+     *            the number of accounts each worker reads from MySQL per query
+     * @param limit
+     *            the maximum number of accounts to read in this run, divided evenly between the workers; 0 to
+     *            process the whole backlog
+     * @param workers
+     *            the number of partitions of the Accounts table to read concurrently
+     * @param writers
+     *            the number of threads committing to MySQL
+     * @param queueDepth
+     *            the number of fetched batches that may wait for a writer before the workers block
+     * @param batchSize
+     *            the number of accounts written in each transaction
+     * @param virtualThreads
+     *            run the workers and writers on virtual threads
+     */
+    public ExternalIdApplication(ConnectionPool pool, Supplier<ParticipantOptionsSource> fetcherSupplier,
+            AccountWriter writer, Checkpoint checkpoint, MigrationMetrics metrics, int pageSize, int limit,
+            int workers, int writers, int queueDepth, int batchSize, boolean virtualThreads) {
+        this.pool = pool;
+        this.fetcherSupplier = fetcherSupplier;
+        this.writer = writer;
+        this.checkpoint = checkpoint;
+        this.metrics = metrics;
+        this.pageSize = pageSize;
+        this.limit = limit;
+        this.workers = workers;
+        this.writers = writers;
+        this.queueDepth = queueDepth;
+        this.batchSize = batchSize;
+        this.virtualThreads = virtualThreads;
+    }
 
-        if (result.getItem() != null) {
-            String json = result.getItem().get("data").getS();
-            return MAPPER.readTree(json);
+    public void run() throws Exception {
+        try {
+            int migrated = new MigrationPipeline(pool, fetcherSupplier, writer, checkpoint, metrics,
+                    checkpoint.getPartitions(), writers, queueDepth, pageSize, batchSize, limit, virtualThreads)
+                    .call();
+            LOGGER.info("Migrated " + migrated + " records with " + workers + " worker(s) and " + writers
+                    + ((virtualThreads) ? " virtual" : "") + " writer(s).");
+        } catch (ExecutionException e) {
+            LOGGER.severe("Migration failed: " + e.getCause());
+            throw e;
+        } finally {
+            pool.close();
         }
-        return EMPTY_NODE;
     }
 }
@@ -0,0 +1,92 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets: four buckets per doubling, so any reported
+ * percentile is within about 19% of the true value. Recording is a handful of atomic increments, cheap enough
+ * to do for every call on every worker.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    // Enough buckets for latencies up to 2^40 microseconds (about 12 days)
+    private static final int BUCKETS = 40 * BUCKETS_PER_DOUBLING;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Record the same latency for several events at once (e.g. every account in a batch).
+     */
+    public void record(long nanos, int events) {
+        if (events < 1) {
+            return;
+        }
+        long micros = Math.max(1, nanos / 1000);
+        int index = (int) (Math.log(micros) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        buckets.addAndGet(Math.min(index, BUCKETS - 1), events);
+        count.addAndGet(events);
+        totalMicros.addAndGet(micros * events);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The upper bound, in microseconds, of the bucket containing the given percentile (0-100), or 0 if nothing
+     * has been recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, threshold)) {
+                return Math.min(maxMicros.get(), (long) Math.pow(2, (i + 1) / (double) BUCKETS_PER_DOUBLING));
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        long total = count.get();
+        return (total == 0) ? 0 : totalMicros.get() / (double) total;
+    }
+
+    /**
+     * e.g. "p50/p99 3.1/45.2 ms"
+     */
+    public String summary() {
+        return String.format("p50/p99 %.1f/%.1f ms", getPercentileMicros(50) / 1000.0,
+                getPercentileMicros(99) / 1000.0);
+    }
+
+    public ObjectNode toJson() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("count", count.get());
+        node.put("meanMicros", getMeanMicros());
+        node.put("p50Micros", getPercentileMicros(50));
+        node.put("p90Micros", getPercentileMicros(90));
+        node.put("p99Micros", getPercentileMicros(99));
+        node.put("p999Micros", getPercentileMicros(99.9));
+        node.put("maxMicros", maxMicros.get());
+        return node;
+    }
+}
@@ -0,0 +1,163 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Counters and per-stage latency histograms for a migration run, shared by every worker. A summary line with
+ * throughput and an ETA for the backlog is logged periodically, and the full set of metrics can be written
+ * out as JSON at the end of the run.
+ */
+public class MigrationMetrics {
+
+    private final static Logger LOGGER = Logger.getLogger(MigrationMetrics.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** DynamoDB round trips (one per BatchGetItem or Scan page). */
+    final LatencyHistogram fetch = new LatencyHistogram();
+    /** Decoding of a single ParticipantOptions record. */
+    final LatencyHistogram parse = new LatencyHistogram();
+    /** Execution and commit of one MySQL transaction. */
+    final LatencyHistogram commit = new LatencyHistogram();
+    /** Time a reader waits to queue a fetched batch; high values mean the writers are the bottleneck. */
+    final LatencyHistogram enqueueWait = new LatencyHistogram();
+    /** Time a writer waits for a batch; high values mean the readers are the bottleneck. */
+    final LatencyHistogram dequeueWait = new LatencyHistogram();
+    /**
+     * Time from an account being read (from MySQL, or from the table scan in scan mode) to its transaction
+     * committing, recorded per account.
+     */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile long backlog;
+    private ScheduledExecutorService reporter;
+
+    public void setBacklog(long backlog) {
+        this.backlog = backlog;
+    }
+
+    public void recordMigrated(int count) {
+        migrated.addAndGet(count);
+    }
+
+    public void recordFailed(int count) {
+        failed.addAndGet(count);
+    }
+
+    public void recordRollback() {
+        rollbacks.incrementAndGet();
+    }
+
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRollbacks() {
+        return rollbacks.get();
+    }
+
+    /**
+     * Accounts processed (migrated or failed) per second since the metrics were created.
+     */
+    public double getAccountsPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return (seconds <= 0) ? 0 : (migrated.get() + failed.get()) / seconds;
+    }
+
+    /**
+     * Estimated seconds until the backlog is processed at the current rate, or -1 if unknown.
+     */
+    public long getEtaSeconds() {
+        double rate = getAccountsPerSecond();
+        long remaining = backlog - migrated.get() - failed.get();
+        if (backlog <= 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, remaining) / rate);
+    }
+
+    public String summary() {
+        long processed = migrated.get() + failed.get();
+        long eta = getEtaSeconds();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Processed ").append(processed);
+        if (backlog > 0) {
+            sb.append(String.format("/%d (%.1f%%)", backlog, processed * 100.0 / backlog));
+        }
+        sb.append(String.format(", %.1f accounts/s", getAccountsPerSecond()));
+        if (eta >= 0) {
+            sb.append(String.format(", ETA %dh%02dm%02ds", eta / 3600, (eta % 3600) / 60, eta % 60));
+        }
+        sb.append("; fetch ").append(fetch.summary());
+        sb.append("; parse ").append(parse.summary());
+        sb.append("; commit ").append(commit.summary());
+        if (latency.getCount() > 0) {
+            sb.append("; per account ").append(latency.summary());
+        }
+        if (enqueueWait.getCount() > 0 || dequeueWait.getCount() > 0) {
+            sb.append("; enqueue wait ").append(enqueueWait.summary());
+            sb.append("; dequeue wait ").append(dequeueWait.summary());
+        }
+        sb.append("; ").append(failed.get()).append(" failed, ").append(rollbacks.get()).append(" rollbacks");
+        return sb.toString();
+    }
+
+    public ObjectNode toJson() {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("elapsedSeconds", (System.nanoTime() - startNanos) / 1e9);
+        node.put("backlog", backlog);
+        node.put("migrated", migrated.get());
+        node.put("failed", failed.get());
+        node.put("rollbacks", rollbacks.get());
+        node.put("accountsPerSecond", getAccountsPerSecond());
+        node.set("fetch", fetch.toJson());
+        node.set("parse", parse.toJson());
+        node.set("commit", commit.toJson());
+        node.set("enqueueWait", enqueueWait.toJson());
+        node.set("dequeueWait", dequeueWait.toJson());
+        node.set("latency", latency.toJson());
+        return node;
+    }
+
+    public void writeJson(Path file) throws IOException {
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), toJson());
+    }
+
+    public synchronized void startReporting(long intervalSeconds) {
+        if (reporter != null || intervalSeconds <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> LOGGER.info(summary()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        LOGGER.info(summary());
+    }
+}
@@ -0,0 +1,390 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Migrates the accounts of every partition in two stages joined by a bounded queue, so that DynamoDB reads
+ * overlap MySQL commits. Each reader pages through one partition and fetches the ParticipantOptions for
+ * every batch of accounts (100 by default); writers take those batches off the queue and commit them. When the
+ * writers fall behind, the queue fills and readers block, so no more than queueDepth batches are ever held
+ * in memory. With an {@link AsyncParticipantOptionsFetcher}, a batch is queued as soon as its request is sent,
+ * and the writer that takes it waits for the response.
+ * <p>
+ * Batches from one partition may be committed out of order by different writers, so the checkpoint for a
+ * partition is only moved past a page once every batch of that page, and of every page before it, has been
+ * written.
+ */
+public class MigrationPipeline implements Callable<Integer> {
+
+    private final static Logger LOGGER = Logger.getLogger(MigrationPipeline.class.getName());
+
+    /** Tells a writer there is no more work. */
+    private static final Batch END = new Batch(null, null);
+
+    private final ConnectionPool pool;
+    private final Supplier<ParticipantOptionsSource> fetcherSupplier;
+    private final AccountWriter writer;
+    private final Checkpoint checkpoint;
+    private final MigrationMetrics metrics;
+    private final List<AccountPartition> partitions;
+    private final int readers;
+    private final int writers;
+    private final int queueDepth;
+    private final int pageSize;
+    private final int batchSize;
+    private final int limit;
+    private final boolean virtualThreads;
+
+    private final AtomicInteger migrated = new AtomicInteger();
+
+    /**
+     * A pipeline that migrates every partition of the checkpoint, with one reader for each.
+     * 
+     * @param fetcherSupplier
+     *            called once per reader, so that each reader has its own DynamoDB client
+     * @param checkpoint
+     *            the partitions of the Accounts table and the position to start each from, updated as batches
+     *            are committed
+     * @param writers
+     *            the number of threads committing batches to MySQL
+     * @param queueDepth
+     *            the number of fetched batches that may wait for a writer before readers block
+     * @param limit
+     *            the maximum number of accounts to read in this run, divided as evenly as possible between the
+     *            readers; 0 to process the whole backlog
+     */
+    public MigrationPipeline(ConnectionPool pool, Supplier<ParticipantOptionsSource> fetcherSupplier,
+            AccountWriter writer, Checkpoint checkpoint, MigrationMetrics metrics, int writers, int queueDepth,
+            int pageSize, int limit) {
+        this(pool, fetcherSupplier, writer, checkpoint, metrics, checkpoint.getPartitions(), writers, queueDepth,
+                pageSize, ParticipantOptionsFetcher.MAX_BATCH_SIZE, limit);
+    }
+
+    /**
+     * A pipeline that only migrates the given partitions, with one reader for each.
+     * 
+     * @param batchSize
+     *            the number of accounts in each batch handed to the writer, and so in each transaction
+     */
+    public MigrationPipeline(ConnectionPool pool, Supplier<ParticipantOptionsSource> fetcherSupplier,
+            AccountWriter writer, Checkpoint checkpoint, MigrationMetrics metrics, List<AccountPartition> partitions,
+            int writers, int queueDepth, int pageSize, int batchSize, int limit) {
+        this(pool, fetcherSupplier, writer, checkpoint, metrics, partitions, writers, queueDepth, pageSize,
+                batchSize, limit, false);
+    }
+
+    /**
+     * @param virtualThreads
+     *            run the readers and writers on virtual threads (see {@link VirtualThreads}). Writers are then
+     *            cheap enough to have one per queued batch, with the connection pool limiting how many commit
+     *            at once.
+     */
+    public MigrationPipeline(ConnectionPool pool, Supplier<ParticipantOptionsSource> fetcherSupplier,
+            AccountWriter writer, Checkpoint checkpoint, MigrationMetrics metrics, List<AccountPartition> partitions,
+            int writers, int queueDepth, int pageSize, int batchSize, int limit, boolean virtualThreads) {
+        if (partitions.isEmpty() || writers < 1 || queueDepth < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("partitions, writers, queueDepth and batchSize must be positive");
+        }
+        this.pool = pool;
+        this.fetcherSupplier = fetcherSupplier;
+        this.writer = writer;
+        this.checkpoint = checkpoint;
+        this.metrics = metrics;
+        this.partitions = partitions;
+        this.readers = partitions.size();
+        this.writers = writers;
+        this.queueDepth = queueDepth;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+        this.limit = limit;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the number of accounts successfully migrated. If any reader or writer fails, the others are
+     * interrupted and the failure is thrown; the checkpoint is flushed either way, so it reflects every page that
+     * was fully committed before the failure.
+     */
+    @Override
+    public Integer call() throws Exception {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueDepth);
+
+        ExecutorService executor = VirtualThreads.newExecutor(virtualThreads, readers + writers);
+        ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        try {
+            Set<Future<Void>> readerFutures = new HashSet<>();
+            for (int i = 0; i < readers; i++) {
+                AccountPartition partition = partitions.get(i);
+                AccountCursor cursor = new AccountCursor(pool, partition, checkpoint.get(partition).getLastId());
+                Reader reader = new Reader(cursor, fetcherSupplier.get(), queue, readerLimit(i));
+                readerFutures.add(completion.submit(reader));
+            }
+            for (int i = 0; i < writers; i++) {
+                completion.submit(new Writer(queue));
+            }
+
+            // A writer only returns after it takes END, so until then any completion is a reader or a failure
+            for (int i = 0; i < readers; i++) {
+                Future<Void> future = completion.take();
+                future.get();
+                if (!readerFutures.contains(future)) {
+                    throw new IllegalStateException("A writer stopped before the readers finished");
+                }
+            }
+            for (int i = 0; i < writers; i++) {
+                // Don't block forever on a full queue if the writers have died
+                while (!queue.offer(END, 1, TimeUnit.SECONDS)) {
+                    Future<Void> future = completion.poll();
+                    if (future != null) {
+                        future.get();
+                        throw new IllegalStateException("A writer stopped before the readers finished");
+                    }
+                }
+            }
+            for (int i = 0; i < writers; i++) {
+                completion.take().get();
+            }
+            checkpoint.flush();
+            return migrated.get();
+        } catch (Exception e) {
+            executor.shutdownNow();
+            try {
+                checkpoint.flush();
+            } catch (IOException flushError) {
+                e.addSuppressed(flushError);
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The share of the limit read by the given reader. The first (limit % readers) readers read one account more
+     * than the rest, so the shares add up to exactly the limit.
+     */
+    private int readerLimit(int reader) {
+        if (limit <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return limit / readers + ((reader < limit % readers) ? 1 : 0);
+    }
+
+    /**
+     * Accounts to write, keyed by user ID, once their options have been fetched, and the page of the partition
+     * they were read from.
+     */
+    private static class Batch {
+        final Page page;
+        final CompletableFuture<Map<String, String>> accounts;
+
+        Batch(Page page, CompletableFuture<Map<String, String>> accounts) {
+            this.page = page;
+            this.accounts = accounts;
+        }
+    }
+
+    /**
+     * One page of a partition, with the number of its batches that have not yet been written.
+     */
+    private class Page {
+        final PartitionProgress progress;
+        final String lastId;
+        final int read;
+        final long readNanos = System.nanoTime();
+        int pending;
+        int migrated;
+
+        Page(PartitionProgress progress, String lastId, int read, int pending) {
+            this.progress = progress;
+            this.lastId = lastId;
+            this.read = read;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * Tracks the pages of one partition that are in flight, and moves the checkpoint forward over every
+     * leading page that has been completely written. The position is worked out under the monitor, but saved
+     * (which may mean writing the file, or a lease row) outside it, so other writers of the partition and its
+     * reader are not held up by the save.
+     */
+    private class PartitionProgress {
+        private final AccountPartition partition;
+        private final Deque<Page> pages = new ArrayDeque<>();
+        private final Object saveLock = new Object();
+        private long read;
+        private long migrated;
+        // Positions are numbered as they are worked out, so one saved late never replaces a later one
+        private long positions;
+        private long savedPosition;
+
+        PartitionProgress(AccountPartition partition) {
+            this.partition = partition;
+            Checkpoint.Position start = checkpoint.get(partition);
+            this.read = start.getRead();
+            this.migrated = start.getMigrated();
+        }
+
+        synchronized Page startPage(String lastId, int read, int batches) {
+            Page page = new Page(this, lastId, read, batches);
+            pages.addLast(page);
+            return page;
+        }
+
+        void batchWritten(Page page, int batchMigrated) throws Exception {
+            String lastId;
+            long readSnapshot;
+            long migratedSnapshot;
+            long position;
+            synchronized (this) {
+                page.pending--;
+                page.migrated += batchMigrated;
+                Page completed = null;
+                while (!pages.isEmpty() && pages.peekFirst().pending == 0) {
+                    completed = pages.removeFirst();
+                    read += completed.read;
+                    migrated += completed.migrated;
+                }
+                if (completed == null) {
+                    return;
+                }
+                lastId = completed.lastId;
+                readSnapshot = read;
+                migratedSnapshot = migrated;
+                position = ++positions;
+            }
+            synchronized (saveLock) {
+                if (position <= savedPosition) {
+                    return;
+                }
+                checkpoint.update(partition, lastId, readSnapshot, migratedSnapshot);
+                savedPosition = position;
+            }
+            LOGGER.fine(partition + ": read " + readSnapshot + " records, migrated " + migratedSnapshot
+                    + " (last id = " + lastId + ").");
+        }
+    }
+
+    /**
+     * Pages through one partition, fetching the options for each batch of accounts and queueing it for the
+     * writers.
+     */
+    private class Reader implements Callable<Void> {
+        private final AccountCursor cursor;
+        private final ParticipantOptionsSource fetcher;
+        private final BlockingQueue<Batch> queue;
+        private final int limit;
+        private final PartitionProgress progress;
+
+        Reader(AccountCursor cursor, ParticipantOptionsSource fetcher, BlockingQueue<Batch> queue, int limit) {
+            this.cursor = cursor;
+            this.fetcher = fetcher;
+            this.queue = queue;
+            this.limit = limit;
+            this.progress = new PartitionProgress(cursor.getPartition());
+        }
+
+        @Override
+        public Void call() throws Exception {
+            int read = 0;
+            Map<String, String> page;
+            while (!(page = cursor.nextPage(nextPageSize(read))).isEmpty()) {
+                read += page.size();
+                List<List<Map.Entry<String, String>>> batches = Lists.partition(new ArrayList<>(page.entrySet()),
+                        batchSize);
+                Page pageProgress = progress.startPage(cursor.getLastId(), page.size(), batches.size());
+                for (List<Map.Entry<String, String>> batch : batches) {
+                    List<String> healthCodes = new ArrayList<>();
+                    for (Map.Entry<String, String> entry : batch) {
+                        healthCodes.add(entry.getValue());
+                    }
+                    // With an async fetcher the batch is queued while its request is still in flight
+                    CompletableFuture<Map<String, String>> accounts = fetcher.fetchAsync(healthCodes)
+                            .thenApply(records -> {
+                                Map<String, String> byUserId = new LinkedHashMap<>();
+                                for (Map.Entry<String, String> entry : batch) {
+                                    byUserId.put(entry.getKey(), records.get(entry.getValue()));
+                                }
+                                return byUserId;
+                            });
+                    long start = System.nanoTime();
+                    queue.put(new Batch(pageProgress, accounts));
+                    metrics.enqueueWait.record(System.nanoTime() - start);
+                }
+            }
+            return null;
+        }
+
+        private int nextPageSize(int read) {
+            return Math.min(pageSize, limit - read);
+        }
+    }
+
+    /**
+     * Commits queued batches until it is told there are no more.
+     */
+    private class Writer implements Callable<Void> {
+        private final BlockingQueue<Batch> queue;
+
+        Writer(BlockingQueue<Batch> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (true) {
+                long start = System.nanoTime();
+                Batch batch = queue.take();
+                metrics.dequeueWait.record(System.nanoTime() - start);
+                if (batch == END) {
+                    return null;
+                }
+                Map<String, String> accounts;
+                try {
+                    accounts = batch.accounts.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+                int written;
+                Connection connection = pool.borrow();
+                try {
+                    // Asked as late as possible, e.g. so a lost shard lease stops every queued batch
+                    written = writer.write(checkpoint.beforeWrite(batch.page.progress.partition, connection),
+                            accounts);
+                } finally {
+                    pool.release(connection);
+                }
+                metrics.latency.record(System.nanoTime() - batch.page.readNanos, written);
+                migrated.addAndGet(written);
+                batch.page.progress.batchWritten(batch.page, written);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Compares the migrated accounts in MySQL with their ParticipantOptions records, and writes every difference
+ * to a tab-separated report (account ID, field, expected value, actual value), with fields escaped as LOAD DATA
+ * expects: NULL is \N, and backslashes, tabs and line breaks are escaped with a backslash. Each partition is
+ * read on its own thread in keyset pages; a page of accounts with all of their languages and data groups is
+ * selected with one query, rather than a query per account. The records for a page are fetched on another
+ * thread while the next page is read.
+ * <p>
+ * A column is only checked when the record sets the option, since the migration leaves existing values in
+ * place otherwise. For the same reason, an account's languages and data groups only have to include the
+ * record's: the writers add the record's rows but keep any the account already had.
+ */
+public class MigrationVerifier implements Callable<Long> {
+
+    private final static Logger LOGGER = Logger.getLogger(MigrationVerifier.class.getName());
+
+    static final String REPORT_HEADER = "id\tfield\texpected\tactual";
+
+    // One row per account, with its languages and data groups each aggregated separately. Values were split
+    // from comma-separated lists, so they cannot contain GROUP_CONCAT's comma separator.
+    static final String PAGE_SQL = "SELECT a.id, a.healthCode, a.externalId, a.sharingScope, a.timeZone, "
+            + "a.notifyByEmail, "
+            + "(SELECT GROUP_CONCAT(l.language) FROM AccountLanguages l WHERE l.accountId = a.id) AS languages, "
+            + "(SELECT GROUP_CONCAT(g.dataGroup) FROM AccountDataGroups g WHERE g.accountId = a.id) AS dataGroups "
+            + "FROM (SELECT id, healthCode, externalId, sharingScope, timeZone, notifyByEmail FROM Accounts "
+            + "WHERE migrationVersion = 1 AND id > ? AND %s ORDER BY id LIMIT ?) a ORDER BY a.id";
+    // MySQL cuts GROUP_CONCAT results off at 1024 bytes by default
+    static final String GROUP_CONCAT_MAX_LEN_SQL = "SET SESSION group_concat_max_len = 1048576";
+
+    /**
+     * An account as it was written to MySQL.
+     */
+    private static final class MigratedAccount {
+        final String id;
+        final String healthCode;
+        final String externalId;
+        final String sharingScope;
+        final String timeZone;
+        final boolean notifyByEmail;
+        final Set<String> languages = new TreeSet<>();
+        final Set<String> dataGroups = new TreeSet<>();
+
+        MigratedAccount(ResultSet results) throws SQLException {
+            this.id = results.getString("id");
+            this.healthCode = results.getString("healthCode");
+            this.externalId = results.getString("externalId");
+            this.sharingScope = results.getString("sharingScope");
+            this.timeZone = results.getString("timeZone");
+            this.notifyByEmail = results.getBoolean("notifyByEmail");
+            addAll(languages, results.getString("languages"));
+            addAll(dataGroups, results.getString("dataGroups"));
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final Supplier<ParticipantOptionsSource> fetcherSupplier;
+    private final List<AccountPartition> partitions;
+    private final int pageSize;
+    private final Path reportFile;
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+
+    /**
+     * @param partitions
+     *            the partitions to verify, each on its own thread
+     */
+    public MigrationVerifier(ConnectionPool pool, Supplier<ParticipantOptionsSource> fetcherSupplier,
+            List<AccountPartition> partitions, int pageSize, Path reportFile) {
+        this.pool = pool;
+        this.fetcherSupplier = fetcherSupplier;
+        this.partitions = partitions;
+        this.pageSize = pageSize;
+        this.reportFile = reportFile;
+    }
+
+    public long getChecked() {
+        return checked.get();
+    }
+
+    public long getMismatched() {
+        return mismatched.get();
+    }
+
+    /**
+     * Returns the number of accounts that do not match their ParticipantOptions record.
+     */
+    @Override
+    public Long call() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+        // Each partition has at most one fetch in flight, made while its next page is read
+        ExecutorService fetches = Executors.newFixedThreadPool(partitions.size());
+        try (BufferedWriter report = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            report.write(REPORT_HEADER);
+            report.newLine();
+            List<Future<?>> futures = new ArrayList<>();
+            for (AccountPartition partition : partitions) {
+                ParticipantOptionsSource fetcher = fetcherSupplier.get();
+                futures.add(executor.submit(() -> {
+                    verify(partition, fetcher, fetches, report);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    executor.shutdownNow();
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            fetches.shutdownNow();
+        }
+        LOGGER.info("Verified " + checked.get() + " accounts, " + mismatched.get() + " did not match. "
+                + "Differences were written to " + reportFile);
+        return mismatched.get();
+    }
+
+    private void verify(AccountPartition partition, ParticipantOptionsSource fetcher, ExecutorService fetches,
+            Writer report) throws Exception {
+        String sql = String.format(PAGE_SQL, partition.getPredicate());
+        List<MigratedAccount> page = nextPage(partition, sql, "");
+        while (!page.isEmpty()) {
+            List<String> healthCodes = new ArrayList<>(page.size());
+            for (MigratedAccount account : page) {
+                healthCodes.add(account.healthCode);
+            }
+            // A synchronous fetcher's fetchAsync() returns when the records are in, so it runs on its own thread
+            Future<Map<String, String>> records = fetches.submit(() -> fetcher.fetchAsync(healthCodes).get());
+            List<MigratedAccount> next = (page.size() < pageSize) ? new ArrayList<>()
+                    : nextPage(partition, sql, page.get(page.size() - 1).id);
+            compare(page, getRecords(records), report);
+            page = next;
+        }
+    }
+
+    private static Map<String, String> getRecords(Future<Map<String, String>> records) throws Exception {
+        try {
+            return records.get();
+        } catch (ExecutionException e) {
+            // Unwrap both the fetch task's and the fetcher's own ExecutionException
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private List<MigratedAccount> nextPage(AccountPartition partition, String sql, String lastId)
+            throws SQLException, InterruptedException {
+        List<MigratedAccount> page = new ArrayList<>();
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            if ("MySQL".equals(connection.getMetaData().getDatabaseProductName())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(GROUP_CONCAT_MAX_LEN_SQL);
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, lastId);
+                statement.setInt(partition.bind(statement, 2), pageSize);
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        page.add(new MigratedAccount(results));
+                    }
+                }
+            }
+        } finally {
+            pool.release(connection);
+        }
+        return page;
+    }
+
+    private void compare(List<MigratedAccount> page, Map<String, String> records, Writer report)
+            throws IOException {
+        ParticipantOptionsDecoder decoder = new ParticipantOptionsDecoder();
+        ParticipantOptions options = new ParticipantOptions();
+        StringBuilder differences = new StringBuilder();
+        int pageMismatched = 0;
+        for (MigratedAccount account : page) {
+            String record = records.get(account.healthCode);
+            decoder.decode((record == null) ? ParticipantOptionsSource.EMPTY_DATA : record, options);
+            int length = differences.length();
+            compareIfSet(differences, account.id, "externalId", options.getExternalId(), account.externalId);
+            compareIfSet(differences, account.id, "sharingScope", options.getSharingScope(), account.sharingScope);
+            compareIfSet(differences, account.id, "timeZone", options.getTimeZone(), account.timeZone);
+            compare(differences, account.id, "notifyByEmail", options.getNotifyByEmail(), account.notifyByEmail);
+            compareContained(differences, account.id, "languages", toSet(options.getLanguages()),
+                    account.languages);
+            compareContained(differences, account.id, "dataGroups", toSet(options.getDataGroups()),
+                    account.dataGroups);
+            if (differences.length() > length) {
+                pageMismatched++;
+            }
+        }
+        checked.addAndGet(page.size());
+        if (pageMismatched > 0) {
+            mismatched.addAndGet(pageMismatched);
+            synchronized (report) {
+                report.write(differences.toString());
+            }
+        }
+    }
+
+    private static void compareIfSet(StringBuilder differences, String id, String field, String expected,
+            String actual) {
+        if (expected != null) {
+            compare(differences, id, field, expected, actual);
+        }
+    }
+
+    private static void compareContained(StringBuilder differences, String id, String field, Set<String> expected,
+            Set<String> actual) {
+        if (!actual.containsAll(expected)) {
+            append(differences, id, field, expected, actual);
+        }
+    }
+
+    private static void compare(StringBuilder differences, String id, String field, Object expected,
+            Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            append(differences, id, field, expected, actual);
+        }
+    }
+
+    private static void append(StringBuilder differences, String id, String field, Object expected,
+            Object actual) {
+        BulkLoadAccountWriter.appendField(differences, id).append('\t').append(field).append('\t');
+        BulkLoadAccountWriter.appendField(differences, Objects.toString(expected, null)).append('\t');
+        BulkLoadAccountWriter.appendField(differences, Objects.toString(actual, null))
+                .append(System.lineSeparator());
+    }
+
+    private static Set<String> toSet(CommaSeparatedList list) {
+        Set<String> set = new TreeSet<>();
+        for (int i = 0; i < list.size(); i++) {
+            set.add(list.get(i));
+        }
+        return set;
+    }
+
+    private static void addAll(Collection<String> values, String concatenated) {
+        if (concatenated != null) {
+            values.addAll(Arrays.asList(concatenated.split(",")));
+        }
+    }
+}
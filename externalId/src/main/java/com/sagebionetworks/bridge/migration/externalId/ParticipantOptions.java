@@ -0,0 +1,50 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+/**
+ * The ParticipantOptions fields the migration needs, decoded from a DynamoDB record by
+ * {@link ParticipantOptionsDecoder}. Instances are mutable and meant to be reused from one record to the next.
+ * Values follow the rules of the {@link Utils} accessors: blank strings are null, and notifyByEmail defaults
+ * to true.
+ */
+public final class ParticipantOptions {
+
+    String externalId;
+    String sharingScope;
+    String timeZone;
+    boolean notifyByEmail = true;
+    final CommaSeparatedList languages = new CommaSeparatedList();
+    final CommaSeparatedList dataGroups = new CommaSeparatedList();
+
+    public void clear() {
+        externalId = null;
+        sharingScope = null;
+        timeZone = null;
+        notifyByEmail = true;
+        languages.clear();
+        dataGroups.clear();
+    }
+
+    public String getExternalId() {
+        return externalId;
+    }
+
+    public String getSharingScope() {
+        return sharingScope;
+    }
+
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    public boolean getNotifyByEmail() {
+        return notifyByEmail;
+    }
+
+    public CommaSeparatedList getLanguages() {
+        return languages;
+    }
+
+    public CommaSeparatedList getDataGroups() {
+        return dataGroups;
+    }
+}
@@ -0,0 +1,84 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes the JSON "data" attribute of a ParticipantOptions record with Jackson's streaming parser, pulling
+ * only the six fields the migration uses into a reusable {@link ParticipantOptions}. Unlike
+ * {@code ObjectMapper.readTree()} this builds no tree of nodes, and unlike {@link Utils#getList} it splits
+ * lists without a regular expression or intermediate arrays. Every other field is skipped. The results are
+ * the same as the {@link Utils} accessors applied to the parsed tree.
+ * 
+ * Instances are thread-safe.
+ */
+public class ParticipantOptionsDecoder {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    public void decode(String json, ParticipantOptions options) throws IOException {
+        options.clear();
+        if (StringUtils.isBlank(json)) {
+            return;
+        }
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("ParticipantOptions data is not a JSON object",
+                        parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                case "EXTERNAL_IDENTIFIER":
+                    options.externalId = getString(parser, token);
+                    break;
+                case "SHARING_SCOPE":
+                    options.sharingScope = getString(parser, token);
+                    break;
+                case "TIME_ZONE":
+                    options.timeZone = getString(parser, token);
+                    break;
+                case "EMAIL_NOTIFICATIONS":
+                    options.notifyByEmail = getBoolean(parser, token, true);
+                    break;
+                case "LANGUAGES":
+                    options.languages.parse(getText(parser, token));
+                    break;
+                case "DATA_GROUPS":
+                    options.dataGroups.parse(getText(parser, token));
+                    break;
+                default:
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static String getText(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static String getString(JsonParser parser, JsonToken token) throws IOException {
+        String text = getText(parser, token);
+        return StringUtils.isBlank(text) ? null : text;
+    }
+
+    private static boolean getBoolean(JsonParser parser, JsonToken token, boolean defaultValue) throws IOException {
+        if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+            return token == JsonToken.VALUE_TRUE;
+        }
+        String text = getString(parser, token);
+        return (text == null) ? defaultValue : "true".equals(text);
+    }
+}
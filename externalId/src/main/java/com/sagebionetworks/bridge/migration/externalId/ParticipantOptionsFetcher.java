@@ -0,0 +1,213 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.google.common.collect.Lists;
+
+/**
+ * Reads ParticipantOptions records from DynamoDB in BatchGetItem requests of up to 100 keys, rather than
+ * one GetItem call per account. Keys that DynamoDB returns as unprocessed (usually due to throttling) are
+ * resubmitted with an exponential backoff. Reads are paced by a shared {@link AdaptiveRateLimiter} (one permit
+ * per key requested, so its rate is in keys per second rather than read capacity units), which is told about
+ * throttling so that all workers slow down together.
+ */
+public class ParticipantOptionsFetcher implements ParticipantOptionsSource {
+
+    private final static Logger LOGGER = Logger.getLogger(ParticipantOptionsFetcher.class.getName());
+
+    /** The maximum number of keys DynamoDB accepts in a single BatchGetItem request. */
+    static final int MAX_BATCH_SIZE = 100;
+    static final int MAX_ATTEMPTS = 10;
+    static final long BASE_BACKOFF_MILLIS = 50;
+    static final long MAX_BACKOFF_MILLIS = 5000;
+
+    static final String HEALTH_CODE_KEY = "healthDataCode";
+    static final String DATA_ATTRIBUTE = "data";
+
+    private final AmazonDynamoDBClient client;
+    final String ddbTable;
+    final AdaptiveRateLimiter readLimiter;
+    final MigrationMetrics metrics;
+
+    public ParticipantOptionsFetcher(AmazonDynamoDBClient client, String ddbTable) {
+        this(client, ddbTable, AdaptiveRateLimiter.unlimited("DynamoDB reads"));
+    }
+
+    public ParticipantOptionsFetcher(AmazonDynamoDBClient client, String ddbTable, AdaptiveRateLimiter readLimiter) {
+        this(client, ddbTable, readLimiter, new MigrationMetrics());
+    }
+
+    public ParticipantOptionsFetcher(AmazonDynamoDBClient client, String ddbTable, AdaptiveRateLimiter readLimiter,
+            MigrationMetrics metrics) {
+        this.client = client;
+        this.ddbTable = ddbTable;
+        this.readLimiter = readLimiter;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Map<String, String> fetch(Collection<String> healthCodes) throws Exception {
+        Map<String, String> records = new HashMap<>();
+        // A key may not appear twice in one BatchGetItem request
+        List<String> uniqueCodes = Lists.newArrayList(new LinkedHashSet<>(healthCodes));
+        for (List<String> batch : Lists.partition(uniqueCodes, MAX_BATCH_SIZE)) {
+            fetchBatch(batch, records);
+        }
+        addDefaults(uniqueCodes, records);
+        return records;
+    }
+
+    private void fetchBatch(List<String> healthCodes, Map<String, String> records) throws Exception {
+        Map<String, KeysAndAttributes> requestItems = requestItems(healthCodes);
+        int attempt = 0;
+        while (!requestItems.isEmpty()) {
+            if (attempt > 0) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new IllegalStateException("DynamoDB left keys unprocessed after " + MAX_ATTEMPTS
+                            + " attempts");
+                }
+                LOGGER.info("Retrying unprocessed keys (attempt " + attempt + ")");
+                backoff(attempt);
+            }
+            readLimiter.acquire(requestItems.get(ddbTable).getKeys().size());
+            BatchGetItemResult result;
+            long start = System.nanoTime();
+            try {
+                result = client.batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+                metrics.fetch.record(System.nanoTime() - start);
+            } catch (ProvisionedThroughputExceededException e) {
+                // The SDK has already retried internally; slow everyone down and try the same keys again
+                readLimiter.onThrottle();
+                attempt++;
+                continue;
+            }
+            requestItems = collect(result, records);
+            attempt++;
+        }
+    }
+
+    /**
+     * The request items of a BatchGetItem request for up to 100 health codes.
+     */
+    Map<String, KeysAndAttributes> requestItems(List<String> healthCodes) {
+        List<Map<String, AttributeValue>> keyList = new ArrayList<>();
+        for (String healthCode : healthCodes) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(HEALTH_CODE_KEY, new AttributeValue().withS(healthCode));
+            keyList.add(key);
+        }
+        KeysAndAttributes keys = new KeysAndAttributes().withAttributesToGet(HEALTH_CODE_KEY, DATA_ATTRIBUTE)
+                .withKeys(keyList);
+        Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+        requestItems.put(ddbTable, keys);
+        return requestItems;
+    }
+
+    /**
+     * Add the records in a BatchGetItem result to the map, and tell the read limiter whether DynamoDB kept up.
+     * Returns the keys that still have to be requested, which is empty when the batch is complete.
+     */
+    Map<String, KeysAndAttributes> collect(BatchGetItemResult result, Map<String, String> records) {
+        List<Map<String, AttributeValue>> items = result.getResponses().get(ddbTable);
+        if (items != null) {
+            for (Map<String, AttributeValue> item : items) {
+                records.put(item.get(HEALTH_CODE_KEY).getS(), getData(item));
+            }
+        }
+        Map<String, KeysAndAttributes> unprocessed = result.getUnprocessedKeys();
+        if (unprocessed == null || unprocessed.isEmpty()) {
+            readLimiter.onSuccess();
+            return new HashMap<>();
+        }
+        readLimiter.onThrottle();
+        return unprocessed;
+    }
+
+    static void addDefaults(Collection<String> healthCodes, Map<String, String> records) {
+        for (String healthCode : healthCodes) {
+            if (!records.containsKey(healthCode)) {
+                records.put(healthCode, EMPTY_DATA);
+            }
+        }
+    }
+
+    /**
+     * Reads a segment of a DynamoDB parallel scan. Only the health code and data attributes are returned. Each
+     * page of results takes as many permits from the read limiter as the number of items DynamoDB scanned to
+     * produce it.
+     */
+    @Override
+    public void scan(int segment, int totalSegments, String startAfter, RecordHandler handler) throws Exception {
+        Map<String, AttributeValue> startKey = null;
+        if (startAfter != null) {
+            startKey = new HashMap<>();
+            startKey.put(HEALTH_CODE_KEY, new AttributeValue().withS(startAfter));
+        }
+        int attempt = 0;
+        while (true) {
+            ScanRequest request = new ScanRequest().withTableName(ddbTable)
+                    .withAttributesToGet(HEALTH_CODE_KEY, DATA_ATTRIBUTE).withSegment(segment)
+                    .withTotalSegments(totalSegments).withExclusiveStartKey(startKey);
+            ScanResult result;
+            long start = System.nanoTime();
+            try {
+                result = client.scan(request);
+                metrics.fetch.record(System.nanoTime() - start);
+            } catch (ProvisionedThroughputExceededException e) {
+                readLimiter.onThrottle();
+                if (++attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                backoff(attempt);
+                continue;
+            }
+            attempt = 0;
+            readLimiter.onSuccess();
+
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                handler.handle(item.get(HEALTH_CODE_KEY).getS(), getData(item));
+            }
+            Integer scannedCount = result.getScannedCount();
+            int scanned = (scannedCount != null) ? scannedCount : result.getItems().size();
+            readLimiter.acquire(scanned);
+
+            startKey = result.getLastEvaluatedKey();
+            boolean last = (startKey == null || startKey.isEmpty());
+            handler.pageScanned(last ? null : startKey.get(HEALTH_CODE_KEY).getS(), scanned);
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private static String getData(Map<String, AttributeValue> item) {
+        AttributeValue data = item.get(DATA_ATTRIBUTE);
+        return (data == null) ? EMPTY_DATA : data.getS();
+    }
+
+    protected void backoff(int attempt) throws InterruptedException {
+        Thread.sleep(backoffMillis(attempt));
+    }
+
+    /**
+     * Exponential backoff with full jitter, capped at MAX_BACKOFF_MILLIS.
+     */
+    protected long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return (long) (Math.random() * ceiling) + 1;
+    }
+}
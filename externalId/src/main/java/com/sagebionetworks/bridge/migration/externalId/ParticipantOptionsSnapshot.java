@@ -0,0 +1,172 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only, memory-mapped copy of the ParticipantOptions table, written by {@link SnapshotWriter}. The file
+ * holds a header, the records (each a length-prefixed health code and data attribute, in UTF-8), and an index
+ * of record offsets sorted by health code, so a lookup is a binary search over the mapped file without reading
+ * anything into the heap first. The operating system's page cache keeps hot parts of the file in memory.
+ * <p>
+ * A single mapping is limited to 2GB, so larger files are mapped in overlapping segments; every record lies
+ * entirely within the segment its first byte falls in, because records are smaller than the overlap.
+ */
+public class ParticipantOptionsSnapshot {
+
+    static final byte[] MAGIC = "EIDSNAP1".getBytes(StandardCharsets.US_ASCII);
+    /** Magic, index offset and record count. */
+    static final int HEADER_SIZE = MAGIC.length + 8 + 4;
+    /** DynamoDB items are at most 400KB, so this comfortably fits any record. */
+    static final int MAX_RECORD_SIZE = 1 << 20;
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] segments;
+    private final long segmentSize;
+    private final long indexOffset;
+    private final int count;
+
+    private ParticipantOptionsSnapshot(MappedByteBuffer[] segments, long segmentSize, long indexOffset,
+            int count) {
+        this.segments = segments;
+        this.segmentSize = segmentSize;
+        this.indexOffset = indexOffset;
+        this.count = count;
+    }
+
+    public static ParticipantOptionsSnapshot open(Path file) throws IOException {
+        return open(file, SEGMENT_SIZE, MAX_RECORD_SIZE);
+    }
+
+    /**
+     * @param overlap
+     *            how far each segment extends into the next; must be at least the size of the largest record
+     */
+    static ParticipantOptionsSnapshot open(Path file, long segmentSize, int overlap) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + " is not a ParticipantOptions snapshot");
+            }
+            int segmentCount = (int) ((size + segmentSize - 1) / segmentSize);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(segmentSize + overlap, size - start));
+            }
+            byte[] magic = new byte[MAGIC.length];
+            segments[0].get(magic);
+            long indexOffset = segments[0].getLong(MAGIC.length);
+            int count = segments[0].getInt(MAGIC.length + 8);
+            if (!Arrays.equals(MAGIC, magic) || indexOffset + 8L * count != size) {
+                throw new IOException(file + " is not a complete ParticipantOptions snapshot");
+            }
+            return new ParticipantOptionsSnapshot(segments, segmentSize, indexOffset, count);
+        }
+    }
+
+    /**
+     * The header of a snapshot file, ready to be written.
+     */
+    static ByteBuffer header(long indexOffset, int count) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putLong(indexOffset).putInt(count);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Orders keys by their unsigned bytes, which for UTF-8 is the same as ordering by code point.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The data attribute stored for a health code, or null if the snapshot has no record for it.
+     */
+    public String get(String healthCode) {
+        byte[] key = healthCode.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long offset = recordOffset(middle);
+            int diff = compareKey(offset, key);
+            if (diff < 0) {
+                low = middle + 1;
+            } else if (diff > 0) {
+                high = middle - 1;
+            } else {
+                return readData(offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pass every n-th record, in health code order, to the handler, starting with the segment-th. Together, the
+     * segments 0 to totalSegments - 1 cover the whole snapshot, as the segments of a DynamoDB scan do.
+     */
+    public void scan(int segment, int totalSegments, ParticipantOptionsSource.RecordHandler handler)
+            throws Exception {
+        for (int i = segment; i < count; i += totalSegments) {
+            long offset = recordOffset(i);
+            handler.handle(readString(offset), readData(offset));
+        }
+    }
+
+    private long recordOffset(int index) {
+        long position = indexOffset + 8L * index;
+        return segments[(int) (position / segmentSize)].getLong((int) (position % segmentSize));
+    }
+
+    private int compareKey(long offset, byte[] key) {
+        ByteBuffer segment = segments[(int) (offset / segmentSize)];
+        int position = (int) (offset % segmentSize);
+        int length = segment.getInt(position);
+        position += 4;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (segment.get(position + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    private String readData(long offset) {
+        ByteBuffer segment = segments[(int) (offset / segmentSize)];
+        int keyLength = segment.getInt((int) (offset % segmentSize));
+        return readString(offset + 4 + keyLength);
+    }
+
+    private String readString(long offset) {
+        // Duplicate so that concurrent readers don't share a position
+        ByteBuffer segment = segments[(int) (offset / segmentSize)].duplicate();
+        int position = (int) (offset % segmentSize);
+        byte[] bytes = new byte[segment.getInt(position)];
+        segment.position(position + 4);
+        segment.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,60 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where a run reads ParticipantOptions records from: the DynamoDB table ({@link ParticipantOptionsFetcher} and its
+ * subclasses) or a local snapshot of it ({@link SnapshotParticipantOptionsFetcher}). Records are returned as the
+ * JSON of their data attribute; decoding is left to the writers.
+ */
+public interface ParticipantOptionsSource {
+
+    /** The data of an account without a ParticipantOptions record, which migrates with default values. */
+    String EMPTY_DATA = "{}";
+
+    /**
+     * Receives the records read by a scan.
+     */
+    interface RecordHandler {
+        void handle(String healthCode, String data) throws Exception;
+
+        /**
+         * Called after the records of each page of a scan have been handled, with the health code the next page
+         * starts after (null after the last page) and the number of items scanned for the page.
+         */
+        default void pageScanned(String lastHealthCode, int scanned) throws Exception {
+        }
+    }
+
+    /**
+     * Fetch the options for all the supplied health codes. Every health code is a key in the returned map; health
+     * codes without a ParticipantOptions record map to {@link #EMPTY_DATA}, which the writers treat as "all
+     * defaults".
+     */
+    Map<String, String> fetch(Collection<String> healthCodes) throws Exception;
+
+    /**
+     * Fetch the options for all the supplied health codes, completing the returned future with the same map that
+     * {@link #fetch(Collection)} returns. By default this fetches synchronously, on the calling thread.
+     */
+    default CompletableFuture<Map<String, String>> fetchAsync(Collection<String> healthCodes) throws Exception {
+        return CompletableFuture.completedFuture(fetch(healthCodes));
+    }
+
+    /**
+     * Read one segment of a parallel scan of every record, passing each to the handler. Segments 0 to
+     * totalSegments - 1 together cover every record exactly once.
+     */
+    default void scan(int segment, int totalSegments, RecordHandler handler) throws Exception {
+        scan(segment, totalSegments, null, handler);
+    }
+
+    /**
+     * As {@link #scan(int, int, RecordHandler)}, starting after the given health code (as passed to
+     * {@link RecordHandler#pageScanned(String, int)}) to resume an earlier scan, or from the beginning if it is
+     * null.
+     */
+    void scan(int segment, int totalSegments, String startAfter, RecordHandler handler) throws Exception;
+}
@@ -0,0 +1,235 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * An alternative to key-by-key lookups for when most accounts still need migrating: the unmigrated accounts
+ * are read from MySQL (in keyset pages) into an in-memory index keyed by health code, then the whole
+ * ParticipantOptions table is read with a parallel scan and joined against that index. Each scan segment
+ * runs on its own thread with its own DynamoDB client, writing matching accounts in batches as it goes.
+ * Accounts left in the index when the scan finishes are looked up with BatchGetItem, which migrates those
+ * without a ParticipantOptions record with default values, exactly as the GetItem path does.
+ * <p>
+ * Each segment's position in the scan is kept in a scan {@link Checkpoint}, moved past a page once every account
+ * matched on it has been written, so a resumed run continues each segment where it stopped (a finished segment
+ * has a null position). Accounts migrated before the checkpoint was saved are no longer in the index, and any
+ * added since, whose records may be in the part of the table already scanned, are looked up at the end.
+ */
+public class ScanMigration implements Callable<Integer> {
+
+    private final static Logger LOGGER = Logger.getLogger(ScanMigration.class.getName());
+
+    private final ConnectionPool pool;
+    private final Supplier<ParticipantOptionsSource> fetcherSupplier;
+    private final AccountWriter writer;
+    private final Checkpoint checkpoint;
+    private final MigrationMetrics metrics;
+    private final int segments;
+    private final int pageSize;
+    private final int batchSize;
+    private final int limit;
+    private final boolean virtualThreads;
+
+    private final AtomicInteger migrated = new AtomicInteger();
+
+    /**
+     * @param checkpoint
+     *            a scan checkpoint with the position to start each segment from, updated as batches are written
+     * @param segments
+     *            the number of parallel scan segments (and threads)
+     * @param batchSize
+     *            the number of accounts written in each transaction
+     * @param limit
+     *            the maximum number of accounts to migrate, or 0 for all of them
+     * @param virtualThreads
+     *            run the segments on virtual threads (see {@link VirtualThreads})
+     */
+    public ScanMigration(ConnectionPool pool, Supplier<ParticipantOptionsSource> fetcherSupplier,
+            AccountWriter writer, Checkpoint checkpoint, MigrationMetrics metrics, int segments, int pageSize,
+            int batchSize, int limit, boolean virtualThreads) {
+        this.pool = pool;
+        this.fetcherSupplier = fetcherSupplier;
+        this.writer = writer;
+        this.checkpoint = checkpoint;
+        this.metrics = metrics;
+        this.segments = segments;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+        this.limit = limit;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the number of accounts successfully migrated. The checkpoint is flushed whether or not the run
+     * succeeds.
+     */
+    @Override
+    public Integer call() throws Exception {
+        Map<String, List<String>> index = indexAccounts();
+        LOGGER.info("Indexed " + index.size() + " health codes, scanning with " + segments + " segment(s).");
+
+        ExecutorService executor = VirtualThreads.newExecutor(virtualThreads, segments);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < segments; i++) {
+                Checkpoint.Position start = checkpoint.get(i);
+                if (start.getLastId() == null) {
+                    LOGGER.info("Segment " + i + " was finished by an earlier run.");
+                    continue;
+                }
+                futures.add(executor.submit(new Segment(i, start, fetcherSupplier.get(), index)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+
+            LOGGER.info("Scan complete, looking up the " + index.size() + " health codes it did not find.");
+            ParticipantOptionsSource fetcher = fetcherSupplier.get();
+            for (List<String> healthCodes : Lists.partition(new ArrayList<>(index.keySet()), batchSize)) {
+                long start = System.nanoTime();
+                Map<String, String> records = fetcher.fetch(healthCodes);
+                Map<String, String> accounts = new LinkedHashMap<>();
+                for (String healthCode : healthCodes) {
+                    for (String userId : index.remove(healthCode)) {
+                        accounts.put(userId, records.get(healthCode));
+                    }
+                }
+                write(accounts, start);
+            }
+            checkpoint.flush();
+            return migrated.get();
+        } catch (Exception e) {
+            executor.shutdownNow();
+            try {
+                checkpoint.flush();
+            } catch (IOException flushError) {
+                e.addSuppressed(flushError);
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Map<String, List<String>> indexAccounts() throws Exception {
+        Map<String, List<String>> index = new ConcurrentHashMap<>();
+        AccountCursor cursor = new AccountCursor(pool, AccountPartition.all());
+        int read = 0;
+        Map<String, String> page;
+        while (!(page = cursor.nextPage((limit > 0) ? Math.min(pageSize, limit - read) : pageSize)).isEmpty()) {
+            read += page.size();
+            for (Map.Entry<String, String> entry : page.entrySet()) {
+                index.computeIfAbsent(entry.getValue(), k -> new ArrayList<>(1)).add(entry.getKey());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write one batch of accounts, recording the time since the first of them was read. Returns the number
+     * migrated.
+     */
+    private int write(Map<String, String> accounts, long startNanos) throws Exception {
+        int written;
+        Connection connection = pool.borrow();
+        try {
+            written = writer.write(connection, accounts);
+        } finally {
+            pool.release(connection);
+        }
+        metrics.latency.record(System.nanoTime() - startNanos, written);
+        migrated.addAndGet(written);
+        return written;
+    }
+
+    /**
+     * Scans one segment, writing the accounts it matches in batches. The segment's thread does its own writes,
+     * so whenever a batch is written, so are the accounts of every page scanned before it.
+     */
+    private class Segment implements Callable<Void>, ParticipantOptionsSource.RecordHandler {
+        private final int segment;
+        private final String startAfter;
+        private final ParticipantOptionsSource fetcher;
+        private final Map<String, List<String>> index;
+        private Map<String, String> accounts = new LinkedHashMap<>();
+        private long batchStartNanos;
+        private long read;
+        private long written;
+        // The last page whose accounts have all been added to a batch, which becomes the segment's position
+        // once they have been written
+        private String scannedPast;
+
+        Segment(int segment, Checkpoint.Position start, ParticipantOptionsSource fetcher,
+                Map<String, List<String>> index) {
+            this.segment = segment;
+            this.startAfter = start.getLastId().isEmpty() ? null : start.getLastId();
+            this.fetcher = fetcher;
+            this.index = index;
+            this.read = start.getRead();
+            this.written = start.getMigrated();
+        }
+
+        @Override
+        public Void call() throws Exception {
+            fetcher.scan(segment, segments, startAfter, this);
+            flush();
+            checkpoint.update(segment, null, read, written);
+            return null;
+        }
+
+        @Override
+        public void handle(String healthCode, String data) throws Exception {
+            // remove() is atomic, so an account is claimed by exactly one segment
+            List<String> userIds = index.remove(healthCode);
+            if (userIds == null) {
+                return;
+            }
+            for (String userId : userIds) {
+                if (accounts.isEmpty()) {
+                    batchStartNanos = System.nanoTime();
+                }
+                accounts.put(userId, data);
+                if (accounts.size() >= batchSize) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void pageScanned(String lastHealthCode, int scanned) throws Exception {
+            read += scanned;
+            if (lastHealthCode == null) {
+                return;
+            }
+            scannedPast = lastHealthCode;
+            if (accounts.isEmpty()) {
+                checkpoint.update(segment, scannedPast, read, written);
+            }
+        }
+
+        private void flush() throws Exception {
+            if (accounts.isEmpty()) {
+                return;
+            }
+            written += write(accounts, batchStartNanos);
+            accounts = new LinkedHashMap<>();
+            if (scannedPast != null) {
+                checkpoint.update(segment, scannedPast, read, written);
+            }
+        }
+    }
+}
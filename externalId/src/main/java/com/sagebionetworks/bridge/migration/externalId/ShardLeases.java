@@ -0,0 +1,381 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates several migration processes through a lease table in the Bridge database. The Accounts table
+ * is divided into a fixed number of shards (ranges of account IDs, stored with the leases so that every process
+ * uses the same ones), and a process may only
+ * migrate a shard while it holds that shard's lease. A lease is kept alive by heartbeats; if its owner stops
+ * renewing it (because the process died or lost its connection), any other process can take the shard over
+ * once the lease expires, and continues from the last page the previous owner committed. Every transaction that
+ * writes a batch is fenced on the lease row in the database (see {@link #fence(Lease, Connection)}), so a process
+ * whose lease was taken over cannot commit to the shard, however long its writes were held up.
+ * <p>
+ * Expiry times are taken from each process's own clock, so hosts must be kept in sync (e.g. with NTP) to well
+ * within the lease duration, or leases are taken over early. The fence does not depend on the clocks.
+ */
+public class ShardLeases {
+
+    private final static Logger LOGGER = Logger.getLogger(ShardLeases.class.getName());
+
+    static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS ExternalIdLeases ("
+            + "shard INT NOT NULL PRIMARY KEY, shardCount INT NOT NULL, owner VARCHAR(255), "
+            + "lowerBound VARCHAR(255), upperBound VARCHAR(255), "
+            + "expiresOn BIGINT NOT NULL DEFAULT 0, lastId VARCHAR(255) NOT NULL DEFAULT '', "
+            + "migrated BIGINT NOT NULL DEFAULT 0, finished BOOLEAN NOT NULL DEFAULT FALSE)";
+    static final String INSERT_SHARD_SQL = "INSERT INTO ExternalIdLeases (shard, shardCount, lowerBound, upperBound) "
+            + "VALUES (?, ?, ?, ?)";
+    static final String SELECT_AVAILABLE_SQL = "SELECT shard, owner FROM ExternalIdLeases "
+            + "WHERE finished = FALSE AND (owner IS NULL OR expiresOn < ?)";
+    static final String ACQUIRE_SQL = "UPDATE ExternalIdLeases SET owner = ?, expiresOn = ? "
+            + "WHERE shard = ? AND finished = FALSE AND (owner IS NULL OR expiresOn < ?)";
+    static final String SELECT_POSITION_SQL = "SELECT lastId, migrated, lowerBound, upperBound FROM ExternalIdLeases "
+            + "WHERE shard = ?";
+    static final String RENEW_SQL = "UPDATE ExternalIdLeases SET expiresOn = ? WHERE shard = ? AND owner = ?";
+    static final String PROGRESS_SQL = "UPDATE ExternalIdLeases SET expiresOn = ?, lastId = ?, migrated = ? "
+            + "WHERE shard = ? AND owner = ?";
+    static final String FENCE_SQL = "SELECT owner FROM ExternalIdLeases WHERE shard = ? FOR UPDATE";
+    static final String RELEASE_SQL = "UPDATE ExternalIdLeases SET owner = NULL, expiresOn = 0, finished = ? "
+            + "WHERE shard = ? AND owner = ?";
+
+    /**
+     * Thrown when a process finds that another process has taken over a shard it was migrating.
+     */
+    public static class LeaseLostException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public LeaseLostException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A shard held by this process, with the position its previous owners had reached.
+     */
+    public static final class Lease {
+        private final AccountPartition shard;
+        private final String startLastId;
+        private final long startMigrated;
+        private volatile boolean lost;
+        private ScheduledFuture<?> heartbeat;
+
+        Lease(AccountPartition shard, String startLastId, long startMigrated) {
+            this.shard = shard;
+            this.startLastId = startLastId;
+            this.startMigrated = startMigrated;
+        }
+
+        public AccountPartition getShard() {
+            return shard;
+        }
+
+        public String getStartLastId() {
+            return startLastId;
+        }
+
+        public long getStartMigrated() {
+            return startMigrated;
+        }
+
+        /**
+         * True once this process has found that the lease expired and was taken by another process.
+         */
+        public boolean isLost() {
+            return lost;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final int shardCount;
+    private final String owner;
+    private final long leaseMillis;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService heartbeats;
+
+    public ShardLeases(ConnectionPool pool, int shardCount, String owner, long leaseMillis) {
+        this(pool, shardCount, owner, leaseMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param owner
+     *            identifies this process in the lease table; must be unique among the processes sharing it
+     * @param leaseMillis
+     *            how long a lease lasts without a heartbeat; heartbeats are sent every third of this
+     */
+    public ShardLeases(ConnectionPool pool, int shardCount, String owner, long leaseMillis, LongSupplier clock) {
+        if (shardCount < 1 || leaseMillis < 3) {
+            throw new IllegalArgumentException("shardCount and leaseMillis must be positive");
+        }
+        this.pool = pool;
+        this.shardCount = shardCount;
+        this.owner = owner;
+        this.leaseMillis = leaseMillis;
+        this.clock = clock;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Create the lease table and a row for every shard if they don't already exist. Every process calls this
+     * on startup; all of them must be configured with the same number of shards. The first to get here divides
+     * the Accounts table into shards, and inserts every row in one transaction, so the shards always come from
+     * the same division.
+     */
+    public void initialize() throws SQLException, InterruptedException {
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_TABLE_SQL);
+            }
+            try (Statement statement = connection.createStatement();
+                    ResultSet results = statement.executeQuery(
+                            "SELECT COUNT(*) FROM ExternalIdLeases WHERE shardCount != " + shardCount)) {
+                results.next();
+                if (results.getInt(1) > 0) {
+                    throw new IllegalStateException("ExternalIdLeases was created for a different number of "
+                            + "shards than " + shardCount);
+                }
+            }
+            try (Statement statement = connection.createStatement();
+                    ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM ExternalIdLeases")) {
+                results.next();
+                if (results.getInt(1) > 0) {
+                    return;
+                }
+            }
+            List<AccountPartition> shards = AccountPartition.split(connection, shardCount);
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SHARD_SQL)) {
+                for (AccountPartition shard : shards) {
+                    statement.setInt(1, shard.getIndex());
+                    statement.setInt(2, shardCount);
+                    statement.setString(3, shard.getLowerBound());
+                    statement.setString(4, shard.getUpperBound());
+                    statement.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                // Another process has created the rows first (integrity constraint violation)
+                if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                    throw e;
+                }
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Claim a shard that is unowned or whose lease has expired, and start sending heartbeats for it. Returns
+     * null if every unfinished shard is held by a live process.
+     */
+    public Lease tryAcquire() throws SQLException, InterruptedException {
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            long now = clock.getAsLong();
+            List<Integer> shards = new ArrayList<>();
+            List<String> owners = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_AVAILABLE_SQL)) {
+                statement.setLong(1, now);
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        shards.add(results.getInt(1));
+                        owners.add(results.getString(2));
+                    }
+                }
+            }
+            // Start at a random shard, so processes starting together don't all race for the same row
+            int offset = shards.isEmpty() ? 0 : (int) (Math.random() * shards.size());
+            Collections.rotate(shards, offset);
+            Collections.rotate(owners, offset);
+            for (int i = 0; i < shards.size(); i++) {
+                int shard = shards.get(i);
+                int updated;
+                try (PreparedStatement statement = connection.prepareStatement(ACQUIRE_SQL)) {
+                    statement.setString(1, owner);
+                    statement.setLong(2, now + leaseMillis);
+                    statement.setInt(3, shard);
+                    statement.setLong(4, now);
+                    updated = statement.executeUpdate();
+                }
+                if (updated == 1) {
+                    if (owners.get(i) != null) {
+                        LOGGER.warning(owner + " took over shard " + shard + " from " + owners.get(i)
+                                + ", whose lease expired");
+                    }
+                    Lease lease = readLease(connection, shard);
+                    lease.heartbeat = heartbeats.scheduleAtFixedRate(() -> heartbeat(lease), leaseMillis / 3,
+                            leaseMillis / 3, TimeUnit.MILLISECONDS);
+                    return lease;
+                }
+            }
+            return null;
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    private Lease readLease(Connection connection, int shard) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_POSITION_SQL)) {
+            statement.setInt(1, shard);
+            try (ResultSet results = statement.executeQuery()) {
+                results.next();
+                AccountPartition partition = new AccountPartition(shard, shardCount, results.getString(3),
+                        results.getString(4));
+                return new Lease(partition, results.getString(1), results.getLong(2));
+            }
+        }
+    }
+
+    /**
+     * Record the position reached in a shard, renewing the lease. Throws LeaseLostException if another process
+     * has taken the shard, in which case this process must stop migrating it.
+     */
+    public void recordProgress(Lease lease, String lastId, long migrated) throws SQLException, InterruptedException {
+        if (lease.lost) {
+            throw new LeaseLostException(owner + " lost the lease on shard " + lease.shard.getIndex());
+        }
+        long expiresOn = clock.getAsLong() + leaseMillis;
+        int updated = update(PROGRESS_SQL, expiresOn, lastId, migrated, lease.shard.getIndex(), owner);
+        if (updated != 1) {
+            lease.lost = true;
+            throw new LeaseLostException(owner + " lost the lease on shard " + lease.shard.getIndex());
+        }
+    }
+
+    /**
+     * Wrap a connection so that every transaction committed through it is fenced on the lease. Just before each
+     * commit, the lease row is locked and its owner checked in the same transaction: if another process has taken
+     * the shard over, the transaction is rolled back and LeaseLostException thrown. Otherwise the row stays locked
+     * until the commit completes, so a takeover waits for the commit rather than overlapping it. Throws at once if
+     * the lease is already known to be lost.
+     */
+    public Connection fence(Lease lease, Connection connection) {
+        if (lease.lost) {
+            throw new LeaseLostException(owner + " lost the lease on shard " + lease.shard.getIndex());
+        }
+        return (Connection) Proxy.newProxyInstance(ShardLeases.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    if ("commit".equals(method.getName()) && method.getParameterCount() == 0) {
+                        checkOwner(lease, connection);
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private void checkOwner(Lease lease, Connection connection) throws SQLException {
+        String currentOwner = null;
+        try (PreparedStatement statement = connection.prepareStatement(FENCE_SQL)) {
+            statement.setInt(1, lease.shard.getIndex());
+            try (ResultSet results = statement.executeQuery()) {
+                if (results.next()) {
+                    currentOwner = results.getString(1);
+                }
+            }
+        }
+        if (!owner.equals(currentOwner)) {
+            connection.rollback();
+            lease.lost = true;
+            throw new LeaseLostException(owner + " lost the lease on shard " + lease.shard.getIndex() + " to "
+                    + currentOwner + ", and rolled back a batch");
+        }
+    }
+
+    /**
+     * Give up a lease. A finished shard is never leased again; an unfinished one can be claimed immediately by
+     * another process.
+     */
+    public void release(Lease lease, boolean finished) throws SQLException, InterruptedException {
+        lease.heartbeat.cancel(false);
+        if (!lease.lost) {
+            update(RELEASE_SQL, finished, lease.shard.getIndex(), owner);
+        }
+    }
+
+    /**
+     * True once every shard has been finished.
+     */
+    public boolean isFinished() throws SQLException, InterruptedException {
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement();
+                    ResultSet results = statement
+                            .executeQuery("SELECT COUNT(*) FROM ExternalIdLeases WHERE finished = FALSE")) {
+                results.next();
+                return results.getInt(1) == 0;
+            }
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    public void close() {
+        heartbeats.shutdownNow();
+    }
+
+    private void heartbeat(Lease lease) {
+        try {
+            long expiresOn = clock.getAsLong() + leaseMillis;
+            if (update(RENEW_SQL, expiresOn, lease.shard.getIndex(), owner) != 1) {
+                LOGGER.warning(owner + " lost the lease on shard " + lease.shard.getIndex());
+                lease.lost = true;
+                lease.heartbeat.cancel(false);
+            }
+        } catch (Exception e) {
+            // The lease may still be renewed by the next heartbeat, or by recording progress
+            LOGGER.warning("Heartbeat for shard " + lease.shard.getIndex() + " failed: " + e);
+        }
+    }
+
+    private int update(String sql, Object... parameters) throws SQLException, InterruptedException {
+        Connection connection = pool.borrow();
+        try {
+            connection.setAutoCommit(true);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                return statement.executeUpdate();
+            }
+        } finally {
+            pool.release(connection);
+        }
+    }
+}
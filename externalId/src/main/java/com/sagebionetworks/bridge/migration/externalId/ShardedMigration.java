@@ -0,0 +1,134 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Migrates shards of the Accounts table one at a time, for as long as there are shards this process can lease.
+ * Several processes, on as many hosts, can run this against the same database: each shard is only migrated by
+ * the process holding its lease, and the position within a shard is stored with the lease after every page, so
+ * a process that takes over a shard from a dead one continues where it left off. When no shard is available but
+ * some are still being migrated elsewhere, the process waits, ready to take over any whose owner dies.
+ */
+public class ShardedMigration implements Callable<Integer> {
+
+    private final static Logger LOGGER = Logger.getLogger(ShardedMigration.class.getName());
+
+    /**
+     * Tracks a leased shard's position like any other checkpoint, and stores it in the lease table. Every batch
+     * is written through a connection fenced on the lease.
+     */
+    static class LeaseCheckpoint extends Checkpoint {
+        private final ShardLeases leases;
+        private final ShardLeases.Lease lease;
+
+        LeaseCheckpoint(ShardLeases leases, ShardLeases.Lease lease) throws IOException {
+            super(null, Collections.singletonList(lease.getShard()));
+            this.leases = leases;
+            this.lease = lease;
+            super.update(lease.getShard(), lease.getStartLastId(), 0, lease.getStartMigrated());
+        }
+
+        @Override
+        public Connection beforeWrite(AccountPartition partition, Connection connection) {
+            return leases.fence(lease, connection);
+        }
+
+        @Override
+        public synchronized void update(AccountPartition partition, String lastId, long read, long migrated)
+                throws IOException {
+            super.update(partition, lastId, read, migrated);
+            try {
+                leases.recordProgress(lease, lastId, migrated);
+            } catch (Exception e) {
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                throw new IOException("Could not record progress of shard " + partition.getIndex(), e);
+            }
+        }
+    }
+
+    private final ShardLeases leases;
+    private final ConnectionPool pool;
+    private final Supplier<ParticipantOptionsSource> fetcherSupplier;
+    private final AccountWriter writer;
+    private final MigrationMetrics metrics;
+    private final int writers;
+    private final int queueDepth;
+    private final int pageSize;
+    private final int batchSize;
+    private final boolean virtualThreads;
+
+    /**
+     * @param leases
+     *            must have been initialized
+     * @param virtualThreads
+     *            run each shard's readers and writers on virtual threads
+     */
+    public ShardedMigration(ShardLeases leases, ConnectionPool pool,
+            Supplier<ParticipantOptionsSource> fetcherSupplier, AccountWriter writer, MigrationMetrics metrics,
+            int writers, int queueDepth, int pageSize, int batchSize, boolean virtualThreads) {
+        this.leases = leases;
+        this.pool = pool;
+        this.fetcherSupplier = fetcherSupplier;
+        this.writer = writer;
+        this.metrics = metrics;
+        this.writers = writers;
+        this.queueDepth = queueDepth;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the number of accounts migrated by this process, once every shard has been finished by some
+     * process.
+     */
+    @Override
+    public Integer call() throws Exception {
+        int migrated = 0;
+        while (true) {
+            ShardLeases.Lease lease = leases.tryAcquire();
+            if (lease == null) {
+                if (leases.isFinished()) {
+                    return migrated;
+                }
+                // Wait long enough for a dead owner's lease to expire
+                Thread.sleep(leases.getLeaseMillis() / 2);
+                continue;
+            }
+            migrated += migrate(lease);
+        }
+    }
+
+    private int migrate(ShardLeases.Lease lease) throws Exception {
+        AccountPartition shard = lease.getShard();
+        LOGGER.info(leases.getOwner() + " is migrating shard " + shard.getIndex() + " of " + shard.getCount()
+                + ((lease.getStartLastId().isEmpty()) ? "" : " from id " + lease.getStartLastId()));
+        boolean finished = false;
+        try {
+            int migrated = new MigrationPipeline(pool, fetcherSupplier, writer, new LeaseCheckpoint(leases, lease),
+                    metrics, Collections.singletonList(shard), writers, queueDepth, pageSize, batchSize, 0,
+                    virtualThreads).call();
+            finished = true;
+            LOGGER.info(leases.getOwner() + " finished shard " + shard.getIndex() + ", migrating " + migrated
+                    + " records.");
+            return migrated;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ShardLeases.LeaseLostException) {
+                // Whatever this process committed is recorded; the new owner continues from there
+                LOGGER.warning(e.getCause().getMessage());
+                return 0;
+            }
+            throw e;
+        } finally {
+            leases.release(lease, finished);
+        }
+    }
+}
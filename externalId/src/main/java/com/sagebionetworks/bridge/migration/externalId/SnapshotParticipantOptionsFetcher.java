@@ -0,0 +1,40 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves ParticipantOptions records from a local {@link ParticipantOptionsSnapshot} instead of DynamoDB. Accounts
+ * without a record in the snapshot get the same empty record they would get from DynamoDB, so a migration
+ * replayed from a snapshot writes exactly what a run against the table at the time of the snapshot would have.
+ * Nothing is cached: the snapshot is memory-mapped, so the pages holding recently read records are already in
+ * the OS page cache, and a lookup is a binary search of the index plus one decode. One instance can be shared
+ * by every reader without contention.
+ */
+public class SnapshotParticipantOptionsFetcher implements ParticipantOptionsSource {
+
+    private final ParticipantOptionsSnapshot snapshot;
+
+    public SnapshotParticipantOptionsFetcher(ParticipantOptionsSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public Map<String, String> fetch(Collection<String> healthCodes) {
+        Map<String, String> records = new HashMap<>();
+        for (String healthCode : healthCodes) {
+            String data = snapshot.get(healthCode);
+            records.put(healthCode, (data == null) ? EMPTY_DATA : data);
+        }
+        return records;
+    }
+
+    @Override
+    public void scan(int segment, int totalSegments, String startAfter, RecordHandler handler) throws Exception {
+        if (startAfter != null) {
+            throw new UnsupportedOperationException("A scan of a snapshot cannot be resumed");
+        }
+        snapshot.scan(segment, totalSegments, handler);
+    }
+}
@@ -0,0 +1,136 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Writes a {@link ParticipantOptionsSnapshot}. Records can be added in any order, from any number of threads
+ * (e.g. the segments of a parallel scan); the index is sorted when the writer is closed. Only the keys and file
+ * offsets are kept in memory. The snapshot is written to a temporary file and renamed into place when complete,
+ * so an interrupted run never leaves a partial snapshot behind.
+ */
+public class SnapshotWriter implements AutoCloseable {
+
+    private static final class Entry {
+        final byte[] key;
+        final long offset;
+
+        Entry(byte[] key, long offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+    }
+
+    private final Path file;
+    private final Path temp;
+    private final DataOutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private long position;
+    private boolean closed;
+
+    public SnapshotWriter(Path file) throws IOException {
+        this.file = file;
+        this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile()), 1 << 16));
+        // The header is rewritten with the index position once it is known
+        out.write(ParticipantOptionsSnapshot.header(0, 0).array());
+        position = ParticipantOptionsSnapshot.HEADER_SIZE;
+    }
+
+    public synchronized void add(String healthCode, String data) throws IOException {
+        byte[] key = healthCode.getBytes(StandardCharsets.UTF_8);
+        byte[] value = data.getBytes(StandardCharsets.UTF_8);
+        if (key.length + value.length + 8 > ParticipantOptionsSnapshot.MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record for " + healthCode + " is too large for a snapshot");
+        }
+        entries.add(new Entry(key, position));
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(value.length);
+        out.write(value);
+        position += 8 + key.length + value.length;
+    }
+
+    /**
+     * Write a snapshot of the whole table with a parallel scan, each segment using its own fetcher. Returns the
+     * number of records written.
+     */
+    public static int writeFromScan(Path file, Supplier<ParticipantOptionsSource> fetcherSupplier, int segments)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+        SnapshotWriter writer = new SnapshotWriter(file);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int segment = 0; segment < segments; segment++) {
+                int thisSegment = segment;
+                ParticipantOptionsSource fetcher = fetcherSupplier.get();
+                futures.add(executor.submit(() -> {
+                    fetcher.scan(thisSegment, segments, writer::add);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            writer.close();
+            return writer.size();
+        } catch (Exception e) {
+            writer.abort();
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Discard the snapshot, leaving any previous snapshot at the same path in place.
+     */
+    public synchronized void abort() throws IOException {
+        closed = true;
+        out.close();
+        Files.deleteIfExists(temp);
+    }
+
+    /**
+     * Write the index and move the snapshot into place.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        entries.sort((a, b) -> ParticipantOptionsSnapshot.compare(a.key, b.key));
+        for (Entry entry : entries) {
+            out.writeLong(entry.offset);
+        }
+        out.close();
+        ByteBuffer header = ParticipantOptionsSnapshot.header(position, entries.size());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -5,10 +5,14 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.Lists;
@@ -17,10 +21,39 @@ public class Utils {
 
     public static Connection establishConnection(String url, String username, String password, boolean useSsl)
             throws SQLException {
-        String connectionString = getConnectionString(url, useSsl);
+        return establishConnection(url, username, password, useSsl, false);
+    }
+
+    public static Connection establishConnection(String url, String username, String password, boolean useSsl,
+            boolean rewriteBatchedStatements) throws SQLException {
+        return establishConnection(url, username, password, useSsl, rewriteBatchedStatements, false);
+    }
+
+    public static Connection establishConnection(String url, String username, String password, boolean useSsl,
+            boolean rewriteBatchedStatements, boolean allowLoadLocalInfile) throws SQLException {
+        String connectionString = getConnectionString(url, useSsl, rewriteBatchedStatements, allowLoadLocalInfile);
         return DriverManager.getConnection(connectionString, username, password);
     }
 
+    public static String getConnectionString(String url, boolean useSsl, boolean rewriteBatchedStatements) {
+        return getConnectionString(url, useSsl, rewriteBatchedStatements, false);
+    }
+
+    public static String getConnectionString(String url, boolean useSsl, boolean rewriteBatchedStatements,
+            boolean allowLoadLocalInfile) {
+        url = getConnectionString(url, useSsl);
+
+        // Have Connector/J send batched INSERTs as multi-row INSERTs
+        if (rewriteBatchedStatements) {
+            url = url + "&rewriteBatchedStatements=true";
+        }
+        // Needed by LOAD DATA LOCAL INFILE, which the bulk writer uses to fill its staging tables
+        if (allowLoadLocalInfile) {
+            url = url + "&allowLoadLocalInfile=true";
+        }
+        return url;
+    }
+
     public static String getConnectionString(String url, boolean useSsl) {
         // This fixes a timezone bug in the MySQL Connector/J
         url = url + "?serverTimezone=UTC";
@@ -38,6 +71,28 @@ public class Utils {
         return new AmazonDynamoDBClient(credentials);
     }
 
+    /**
+     * A client that can make up to maxConnections requests at once, from as many threads.
+     */
+    public static AmazonDynamoDBClient establishDynamoDBConnection(String key, String secretKey, int maxConnections) {
+        BasicAWSCredentials credentials = new BasicAWSCredentials(key, secretKey);
+        return new AmazonDynamoDBClient(credentials, new ClientConfiguration().withMaxConnections(maxConnections));
+    }
+
+    public static AmazonDynamoDBAsyncClient establishDynamoDBAsyncConnection(String key, String secretKey,
+            int maxConcurrency) {
+        BasicAWSCredentials credentials = new BasicAWSCredentials(key, secretKey);
+        // The client completes each request on a thread of this executor, so size it (and the HTTP connection
+        // pool) to the number of requests allowed in flight
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "ddb-async");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new AmazonDynamoDBAsyncClient(credentials,
+                new ClientConfiguration().withMaxConnections(maxConcurrency), executor);
+    }
+
     public static void optionsToAccountUpdateSQL(List<String> statements, String id, JsonNode node) throws Exception {
         StringBuilder sb = new StringBuilder();
         sb.append("UPDATE Accounts SET ");
@@ -64,17 +119,18 @@ public class Utils {
         statements.add(sb.toString());
     }
 
+    // Rows that already exist are left as they are, so the statements can be replayed
     public static void optionsToLanguagesUpdateSQL(List<String> statements, String id, JsonNode node) {
         for (String language : Utils.getList(node, "LANGUAGES")) {
-            statements.add(
-                    "INSERT INTO AccountLanguages (accountId, language) VALUES ('" + id + "','" + language + "');");
+            statements.add("INSERT INTO AccountLanguages (accountId, language) VALUES ('" + id + "','" + language
+                    + "') ON DUPLICATE KEY UPDATE accountId = accountId;");
         }
     }
 
     public static void optionsToDataGroupsUpdateSQL(List<String> statements, String id, JsonNode node) {
         for (String group : Utils.getList(node, "DATA_GROUPS")) {
-            statements
-                    .add("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('" + id + "','" + group + "');");
+            statements.add("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('" + id + "','" + group
+                    + "') ON DUPLICATE KEY UPDATE accountId = accountId;");
         }
     }
 
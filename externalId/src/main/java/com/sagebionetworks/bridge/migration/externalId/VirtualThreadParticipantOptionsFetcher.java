@@ -0,0 +1,90 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.google.common.collect.Lists;
+
+/**
+ * Has many BatchGetItem requests in flight the simple way: each request is made with the blocking client, on a
+ * thread of its own from the given executor (normally {@link VirtualThreads#newExecutor()}), with the same
+ * retries and backoff as the synchronous fetcher. As with the {@link AsyncParticipantOptionsFetcher}, the
+ * number of outstanding requests is capped by a semaphore, and {@link #fetchAsync(Collection)} blocks while the
+ * cap is reached.
+ * <p>
+ * The unit of work is one BatchGetItem request of up to 100 keys, with its retries of unprocessed keys; the
+ * accounts in a request are not fanned out further, since a GetItem per account would cost up to 100 times the
+ * requests for the same keys. So the virtual threads only replace the platform threads a pool would otherwise
+ * need for the requests in flight, one per request: they make a thread blocked on the network or in a retry
+ * backoff cheap, while the semaphore, not the thread count, decides how many requests are outstanding.
+ * <p>
+ * One instance is meant to be shared by every reader, so the cap applies to the whole process. The client's
+ * HTTP connection pool should allow as many connections as the cap.
+ */
+public class VirtualThreadParticipantOptionsFetcher extends ParticipantOptionsFetcher {
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+
+    /**
+     * @param maxConcurrency
+     *            the maximum number of BatchGetItem requests in flight at once
+     */
+    public VirtualThreadParticipantOptionsFetcher(AmazonDynamoDBClient client, String ddbTable, int maxConcurrency,
+            AdaptiveRateLimiter readLimiter, MigrationMetrics metrics, ExecutorService executor) {
+        super(client, ddbTable, readLimiter, metrics);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        this.executor = executor;
+        this.inFlight = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> fetchAsync(Collection<String> healthCodes) throws Exception {
+        // Batches complete on different threads
+        Map<String, String> records = new ConcurrentHashMap<>();
+        List<String> uniqueCodes = Lists.newArrayList(new LinkedHashSet<>(healthCodes));
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (List<String> batch : Lists.partition(uniqueCodes, MAX_BATCH_SIZE)) {
+            inFlight.acquire();
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            try {
+                executor.execute(() -> {
+                    Throwable error = null;
+                    try {
+                        records.putAll(super.fetch(batch));
+                    } catch (Throwable t) {
+                        error = t;
+                    } finally {
+                        // Released before the future completes, so the permit is back once the caller sees it
+                        inFlight.release();
+                    }
+                    if (error == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(error);
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.release();
+                future.completeExceptionally(e);
+            }
+            batches.add(future);
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()]))
+                .thenApply(v -> records);
+    }
+
+    int getAvailablePermits() {
+        return inFlight.availablePermits();
+    }
+}
@@ -0,0 +1,60 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21 and later) from code compiled for Java 8. The executor is looked up
+ * reflectively, so the tool still builds and runs on older JDKs, where only platform threads are available.
+ * <p>
+ * Virtual threads let every batch in flight block in plain JDBC and DynamoDB calls without costing a platform
+ * thread each; the concurrency limits come from the {@link ConnectionPool} and the fetcher's semaphore instead
+ * of the thread count. Until Java 24, a virtual thread inside a synchronized block (as Connector/J uses around
+ * every statement) holds on to its carrier thread, so MySQL calls still run at most
+ * jdk.virtualThreadScheduler.parallelism at a time.
+ */
+public final class VirtualThreads {
+
+    private static final Method NEW_EXECUTOR = findExecutorFactory();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * An executor that starts a new virtual thread for each task.
+     *
+     * @throws UnsupportedOperationException
+     *             if this JDK does not have virtual threads
+     */
+    public static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * A virtual thread executor if virtual is true, otherwise a pool of the given number of platform threads.
+     */
+    public static ExecutorService newExecutor(boolean virtual, int platformThreads) {
+        return virtual ? newExecutor() : Executors.newFixedThreadPool(platformThreads);
+    }
+
+    private static Method findExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
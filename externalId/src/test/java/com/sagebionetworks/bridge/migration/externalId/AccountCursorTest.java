@@ -0,0 +1,89 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class AccountCursorTest {
+
+    private TestDatabase database;
+    private ConnectionPool pool;
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        pool = database.pool(1);
+        // Inserted out of order; id "03" is already migrated
+        for (String id : new String[] { "05", "01", "04", "03", "02", "07", "06" }) {
+            database.insertAccount(id, "hc" + id, "03".equals(id) ? 1 : 0);
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.close();
+        database.close();
+    }
+
+    @Test
+    public void pagesThroughUnmigratedAccountsInOrder() throws Exception {
+        AccountCursor cursor = new AccountCursor(pool, AccountPartition.all());
+
+        Map<String, String> page = cursor.nextPage(3);
+        assertEquals(Lists.newArrayList("01", "02", "04"), new ArrayList<>(page.keySet()));
+        assertEquals("hc01", page.get("01"));
+        assertEquals("04", cursor.getLastId());
+
+        page = cursor.nextPage(3);
+        assertEquals(Lists.newArrayList("05", "06", "07"), new ArrayList<>(page.keySet()));
+
+        assertTrue(cursor.nextPage(3).isEmpty());
+    }
+
+    @Test
+    public void partitionsAreDisjointCompleteAndBalanced() throws Exception {
+        List<AccountPartition> partitions = AccountPartition.split(pool, 3);
+        // Seven accounts, divided after the third and the fifth
+        assertEquals(Lists.newArrayList("03", "05"), AccountPartition.getBoundaries(partitions));
+
+        Set<String> seen = new HashSet<>();
+        int total = 0;
+        for (AccountPartition partition : partitions) {
+            AccountCursor cursor = new AccountCursor(pool, partition);
+            List<String> ids = new ArrayList<>();
+            Map<String, String> page;
+            while (!(page = cursor.nextPage(2)).isEmpty()) {
+                ids.addAll(page.keySet());
+            }
+            assertEquals(2, ids.size());
+            seen.addAll(ids);
+            total += ids.size();
+        }
+        assertEquals(6, total);
+        assertEquals(6, seen.size());
+    }
+
+    @Test
+    public void fewerAccountsThanPartitionsLeavesSomeEmpty() throws Exception {
+        try (TestDatabase empty = new TestDatabase(); ConnectionPool emptyPool = empty.pool(1)) {
+            empty.insertAccount("01", "hc01", 0);
+            List<AccountPartition> partitions = AccountPartition.split(emptyPool, 3);
+            int total = 0;
+            for (AccountPartition partition : partitions) {
+                total += new AccountCursor(emptyPool, partition).nextPage(10).size();
+            }
+            assertEquals(1, total);
+        }
+    }
+}
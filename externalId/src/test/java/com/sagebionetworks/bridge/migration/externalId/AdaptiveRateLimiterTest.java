@@ -0,0 +1,118 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** A limiter on a fake clock; sleeping just advances the clock. */
+    private static class FakeClockLimiter extends AdaptiveRateLimiter {
+        long now;
+        long slept;
+
+        FakeClockLimiter(double maxRate) {
+            super("test", maxRate);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        @Override
+        protected void sleep(long nanos) {
+            slept += nanos;
+            now += nanos;
+        }
+    }
+
+    @Test
+    public void unlimitedNeverBlocks() throws Exception {
+        AdaptiveRateLimiter limiter = AdaptiveRateLimiter.unlimited("test");
+        limiter.onThrottle();
+        limiter.acquire(1000000);
+        assertTrue(limiter.isUnlimited());
+    }
+
+    @Test
+    public void pacesCallersToTheRate() throws Exception {
+        FakeClockLimiter limiter = new FakeClockLimiter(10);
+
+        // The first second's worth of permits is available immediately
+        limiter.acquire(10);
+        assertEquals(0, limiter.slept);
+
+        // After that, each permit costs a tenth of a second
+        limiter.acquire(5);
+        assertEquals(SECOND / 2, limiter.slept);
+    }
+
+    @Test
+    public void largeRequestsAreTakenOnCredit() throws Exception {
+        FakeClockLimiter limiter = new FakeClockLimiter(10);
+        limiter.acquire(30);
+        assertEquals(2 * SECOND, limiter.slept);
+    }
+
+    @Test
+    public void halvesOnThrottleAndRampsBackUp() throws Exception {
+        FakeClockLimiter limiter = new FakeClockLimiter(100);
+
+        limiter.onThrottle();
+        assertEquals(50, limiter.getRate(), 0.001);
+
+        // A second throttle within the same second is ignored
+        limiter.onThrottle();
+        assertEquals(50, limiter.getRate(), 0.001);
+
+        limiter.now += SECOND;
+        limiter.onThrottle();
+        assertEquals(25, limiter.getRate(), 0.001);
+
+        limiter.now += SECOND;
+        limiter.onSuccess();
+        assertEquals(35, limiter.getRate(), 0.001);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.now += SECOND;
+            limiter.onSuccess();
+        }
+        assertEquals(100, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void throttleRightAfterAnIncreaseStillHalvesTheRate() throws Exception {
+        FakeClockLimiter limiter = new FakeClockLimiter(100);
+        limiter.onThrottle();
+        limiter.now += SECOND;
+        limiter.onSuccess();
+        assertEquals(60, limiter.getRate(), 0.001);
+
+        limiter.onThrottle();
+        assertEquals(30, limiter.getRate(), 0.001);
+
+        // And the rate doesn't climb again until a second after the throttle
+        limiter.now += SECOND / 2;
+        limiter.onSuccess();
+        assertEquals(30, limiter.getRate(), 0.001);
+        limiter.now += SECOND / 2;
+        limiter.onSuccess();
+        assertEquals(40, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void neverDropsBelowTheMinimumRate() throws Exception {
+        FakeClockLimiter limiter = new FakeClockLimiter(100);
+        for (int i = 0; i < 20; i++) {
+            limiter.now += SECOND;
+            limiter.onThrottle();
+        }
+        assertEquals(100 * AdaptiveRateLimiter.MIN_RATE_FRACTION, limiter.getRate(), 0.001);
+    }
+}
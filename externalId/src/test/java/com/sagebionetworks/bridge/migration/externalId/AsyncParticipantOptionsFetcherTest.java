@@ -0,0 +1,260 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.google.common.collect.Lists;
+
+public class AsyncParticipantOptionsFetcherTest {
+
+    private static final String TABLE = "ParticipantOptions";
+
+    /** A request that has been sent, and the handler to complete it with. */
+    private static class Call {
+        final BatchGetItemRequest request;
+        final AsyncHandler<BatchGetItemRequest, BatchGetItemResult> handler;
+
+        Call(BatchGetItemRequest request, AsyncHandler<BatchGetItemRequest, BatchGetItemResult> handler) {
+            this.request = request;
+            this.handler = handler;
+        }
+
+        void succeed(BatchGetItemResult result) {
+            handler.onSuccess(request, result);
+        }
+    }
+
+    private AmazonDynamoDBAsyncClient client;
+    private LinkedBlockingQueue<Call> calls;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        client = mock(AmazonDynamoDBAsyncClient.class);
+        calls = new LinkedBlockingQueue<>();
+        doAnswer(invocation -> {
+            calls.add(new Call((BatchGetItemRequest) invocation.getArguments()[0],
+                    (AsyncHandler<BatchGetItemRequest, BatchGetItemResult>) invocation.getArguments()[1]));
+            return null;
+        }).when(client).batchGetItemAsync(any(BatchGetItemRequest.class), any(AsyncHandler.class));
+    }
+
+    private AsyncParticipantOptionsFetcher fetcher(int maxConcurrency) {
+        return fetcher(maxConcurrency, AdaptiveRateLimiter.unlimited("test"));
+    }
+
+    private AsyncParticipantOptionsFetcher fetcher(int maxConcurrency, AdaptiveRateLimiter readLimiter) {
+        return new AsyncParticipantOptionsFetcher(client, TABLE, maxConcurrency, readLimiter,
+                new MigrationMetrics()) {
+            @Override
+            protected long backoffMillis(int attempt) {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void retriesUnprocessedKeys() throws Exception {
+        AsyncParticipantOptionsFetcher fetcher = fetcher(10);
+        CompletableFuture<Map<String, String>> future = fetcher.fetchAsync(Lists.newArrayList("hc1", "hc2", "hc3"));
+
+        Map<String, AttributeValue> unprocessedKey = new HashMap<>();
+        unprocessedKey.put("healthDataCode", new AttributeValue().withS("hc2"));
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<>();
+        unprocessed.put(TABLE, new KeysAndAttributes().withKeys(unprocessedKey));
+        next().succeed(result(item("hc1", "{\"LANGUAGES\":\"en\"}")).withUnprocessedKeys(unprocessed));
+        assertFalse(future.isDone());
+
+        Call retry = next();
+        assertSame(unprocessed, retry.request.getRequestItems());
+        retry.succeed(result(item("hc2", "{\"DATA_GROUPS\":\"group1\"}")));
+
+        Map<String, String> records = future.get(5, TimeUnit.SECONDS);
+        assertEquals("{\"LANGUAGES\":\"en\"}", records.get("hc1"));
+        assertEquals("{\"DATA_GROUPS\":\"group1\"}", records.get("hc2"));
+        assertSame(ParticipantOptionsFetcher.EMPTY_DATA, records.get("hc3"));
+        assertEquals(10, fetcher.getAvailablePermits());
+        verify(client, times(2)).batchGetItemAsync(any(BatchGetItemRequest.class), any(AsyncHandler.class));
+    }
+
+    @Test
+    public void capsRequestsInFlight() throws Exception {
+        AsyncParticipantOptionsFetcher fetcher = fetcher(2);
+        List<String> healthCodes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            healthCodes.add("hc" + i);
+        }
+        // Two batches of 100 use up both permits without waiting for a response
+        CompletableFuture<Map<String, String>> first = fetcher.fetchAsync(healthCodes);
+        assertEquals(0, fetcher.getAvailablePermits());
+
+        CompletableFuture<CompletableFuture<Map<String, String>>> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetcher.fetchAsync(Lists.newArrayList("hc999"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Call call1 = next();
+        Call call2 = next();
+        // Neither can change until a permit is released
+        assertFalse(second.isDone());
+        assertTrue(calls.isEmpty());
+
+        call1.succeed(result());
+        next().succeed(result(item("hc999", "{}")));
+        assertEquals(1, second.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).size());
+
+        call2.succeed(result());
+        assertEquals(200, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, fetcher.getAvailablePermits());
+    }
+
+    @Test(timeout = 10000)
+    public void retryWaitingOnTheRateLimiterDoesNotHoldUpOthers() throws Exception {
+        Thread testThread = Thread.currentThread();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // Only the retry of the two-key batch waits; first attempts are sent from this thread
+        AdaptiveRateLimiter readLimiter = new AdaptiveRateLimiter("test", 0) {
+            @Override
+            public void acquire(int permits) throws InterruptedException {
+                if (permits == 2 && Thread.currentThread() != testThread) {
+                    blocked.countDown();
+                    release.await();
+                }
+            }
+        };
+        AsyncParticipantOptionsFetcher fetcher = fetcher(2, readLimiter);
+        CompletableFuture<Map<String, String>> slow = fetcher.fetchAsync(Lists.newArrayList("hc1", "hc2"));
+        CompletableFuture<Map<String, String>> fast = fetcher.fetchAsync(Lists.newArrayList("hc3"));
+        Call slowCall = next();
+        Call fastCall = next();
+        if (slowCall.request.getRequestItems().get(TABLE).getKeys().size() == 1) {
+            Call call = slowCall;
+            slowCall = fastCall;
+            fastCall = call;
+        }
+
+        slowCall.handler.onError(new ProvisionedThroughputExceededException("Slow down"));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        fastCall.handler.onError(new ProvisionedThroughputExceededException("Slow down"));
+        next().succeed(result(item("hc3", "{}")));
+        assertEquals("{}", fast.get(5, TimeUnit.SECONDS).get("hc3"));
+        assertFalse(slow.isDone());
+
+        release.countDown();
+        next().succeed(result());
+        assertEquals(2, slow.get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, fetcher.getAvailablePermits());
+    }
+
+    @Test
+    public void errorsFailTheFutureAndReleaseThePermit() throws Exception {
+        AsyncParticipantOptionsFetcher fetcher = fetcher(1);
+        CompletableFuture<Map<String, String>> future = fetcher.fetchAsync(Lists.newArrayList("hc1"));
+        next().handler.onError(new AmazonServiceException("Access denied"));
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Should have thrown an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+        assertEquals(1, fetcher.getAvailablePermits());
+    }
+
+    @Test
+    public void interruptedSendRestoresTheInterruptFlag() throws Exception {
+        AdaptiveRateLimiter readLimiter = new AdaptiveRateLimiter("test", 1) {
+            @Override
+            public void acquire(int permits) throws InterruptedException {
+                throw new InterruptedException();
+            }
+        };
+        AsyncParticipantOptionsFetcher fetcher = fetcher(1, readLimiter);
+        CompletableFuture<Map<String, String>> future = fetcher.fetchAsync(Lists.newArrayList("hc1"));
+        try {
+            assertTrue(Thread.interrupted());
+            assertTrue(future.isCompletedExceptionally());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, fetcher.getAvailablePermits());
+    }
+
+    @Test
+    public void closeStopsRetries() throws Exception {
+        AsyncParticipantOptionsFetcher fetcher = fetcher(1);
+        CompletableFuture<Map<String, String>> future = fetcher.fetchAsync(Lists.newArrayList("hc1"));
+        fetcher.close();
+
+        // The retry cannot be scheduled, so the batch fails instead of waiting forever
+        next().handler.onError(new ProvisionedThroughputExceededException("Slow down"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Should have thrown an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(1, fetcher.getAvailablePermits());
+    }
+
+    private Call next() throws InterruptedException {
+        Call call = calls.poll(5, TimeUnit.SECONDS);
+        if (call == null) {
+            fail("No request was sent");
+        }
+        return call;
+    }
+
+    @SafeVarargs
+    private static BatchGetItemResult result(Map<String, AttributeValue>... items) {
+        // Copied element by element: handing the generic array on would risk heap pollution
+        List<Map<String, AttributeValue>> itemList = new ArrayList<>();
+        for (Map<String, AttributeValue> item : items) {
+            itemList.add(item);
+        }
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        responses.put(TABLE, itemList);
+        return new BatchGetItemResult().withResponses(responses);
+    }
+
+    private static Map<String, AttributeValue> item(String healthCode, String json) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("healthDataCode", new AttributeValue().withS(healthCode));
+        item.put("data", new AttributeValue().withS(json));
+        return item;
+    }
+}
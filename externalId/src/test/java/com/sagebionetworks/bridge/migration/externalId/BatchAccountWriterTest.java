@@ -0,0 +1,149 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+public class BatchAccountWriterTest {
+
+    private TestDatabase database;
+    private Connection connection;
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        connection = database.connect();
+    }
+
+    @After
+    public void after() throws Exception {
+        connection.close();
+        database.close();
+    }
+
+    @Test
+    public void writesAllTablesInOneBatch() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (int i = 0; i < UtilsTest.TEST_JSON.length; i++) {
+            String id = "id" + i;
+            database.insertAccount(id, "hc" + i, 0);
+            accounts.put(id, UtilsTest.TEST_JSON[i].replaceAll("'", "\""));
+        }
+
+        assertEquals(UtilsTest.TEST_JSON.length, new BatchAccountWriter().write(connection, accounts));
+
+        assertAccount("id0", "BBB", "NO_SHARING", false);
+        assertAccount("id7", null, null, true);
+        assertAccount("id11", null, null, true);
+        assertEquals(Lists.newArrayList("en", "fr"), select("SELECT language FROM AccountLanguages "
+                + "WHERE accountId = 'id9' ORDER BY language"));
+        assertEquals(Lists.newArrayList("group1", "group2"), select("SELECT dataGroup FROM AccountDataGroups "
+                + "WHERE accountId = 'id4' ORDER BY dataGroup"));
+        assertEquals(Lists.newArrayList("0"), select("SELECT COUNT(*) FROM Accounts WHERE migrationVersion != 1"));
+    }
+
+    @Test
+    public void unsetOptionsDoNotOverwriteExistingValues() throws Exception {
+        database.insertAccount("id", "hc", 0);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE Accounts SET timeZone = '+03:00' WHERE id = 'id'");
+        }
+        Map<String, String> accounts = new LinkedHashMap<>();
+        accounts.put("id", "{\"SHARING_SCOPE\":\"NO_SHARING\"}");
+
+        new BatchAccountWriter().write(connection, accounts);
+
+        assertEquals(Lists.newArrayList("+03:00"), select("SELECT timeZone FROM Accounts WHERE id = 'id'"));
+    }
+
+    @Test
+    public void valuesAreNotInterpretedAsSQL() throws Exception {
+        database.insertAccount("id", "hc", 0);
+        Map<String, String> accounts = new LinkedHashMap<>();
+        accounts.put("id", "{\"EXTERNAL_IDENTIFIER\":\"O'Brien\"}");
+
+        assertEquals(1, new BatchAccountWriter().write(connection, accounts));
+
+        assertEquals(Lists.newArrayList("O'Brien"), select("SELECT externalId FROM Accounts WHERE id = 'id'"));
+    }
+
+    @Test
+    public void failingAccountDoesNotRollBackOthers() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (String id : new String[] { "id1", "id2", "id3" }) {
+            database.insertAccount(id, "hc", 0);
+            accounts.put(id, "{\"LANGUAGES\":\"en\"}");
+        }
+        // id2's language does not fit in the column
+        accounts.put("id2", "{\"LANGUAGES\":\"" + Strings.repeat("x", 256) + "\"}");
+
+        assertEquals(2, new BatchAccountWriter().write(connection, accounts));
+
+        assertEquals(Lists.newArrayList("id1", "id3"),
+                select("SELECT id FROM Accounts WHERE migrationVersion = 1 ORDER BY id"));
+    }
+
+    @Test
+    public void batchCanBeWrittenAgain() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (String id : new String[] { "id1", "id2" }) {
+            database.insertAccount(id, "hc", 0);
+            accounts.put(id, "{\"LANGUAGES\":\"en,fr,en\",\"DATA_GROUPS\":\"group1\"}");
+        }
+        // As if an earlier run had written part of id2 before failing
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO AccountLanguages (accountId, language) VALUES ('id2', 'en')");
+        }
+
+        assertEquals(2, new BatchAccountWriter().write(connection, accounts));
+        assertEquals(2, new BatchAccountWriter().write(connection, accounts));
+
+        assertEquals(Lists.newArrayList("id1:en", "id1:fr", "id2:en", "id2:fr"), select(
+                "SELECT CONCAT(accountId, ':', language) FROM AccountLanguages ORDER BY accountId, language"));
+        assertEquals(Lists.newArrayList("id1", "id2"),
+                select("SELECT accountId FROM AccountDataGroups ORDER BY accountId"));
+    }
+
+    private void assertAccount(String id, String externalId, String sharingScope, boolean notifyByEmail)
+            throws Exception {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT * FROM Accounts WHERE id = '" + id + "'")) {
+            assertTrue(rs.next());
+            if (externalId == null) {
+                assertNull(rs.getString("externalId"));
+            } else {
+                assertEquals(externalId, rs.getString("externalId"));
+            }
+            assertEquals(sharingScope, rs.getString("sharingScope"));
+            assertEquals(notifyByEmail, rs.getBoolean("notifyByEmail"));
+            assertEquals(1, rs.getInt("migrationVersion"));
+            assertFalse(rs.next());
+        }
+    }
+
+    private List<String> select(String sql) throws Exception {
+        List<String> values = new ArrayList<>();
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,264 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+/**
+ * H2 has neither LOAD DATA nor MySQL's multi-table UPDATE, so these tests parse the staged rows back and insert
+ * them, and apply them with the equivalent MERGE. That still checks the text encoding and the set-based
+ * statements against the row-by-row writer.
+ */
+public class BulkLoadAccountWriterTest {
+
+    private static class H2BulkLoadAccountWriter extends BulkLoadAccountWriter {
+        H2BulkLoadAccountWriter() {
+            this(new MigrationMetrics());
+        }
+
+        H2BulkLoadAccountWriter(MigrationMetrics metrics) {
+            super(AdaptiveRateLimiter.unlimited("MySQL transactions"), metrics);
+        }
+
+        @Override
+        protected String getUpdateAccountsSql() {
+            return "MERGE INTO Accounts a USING " + STAGING_ACCOUNTS + " s ON (a.id = s.id) WHEN MATCHED THEN "
+                    + "UPDATE SET a.externalId = COALESCE(s.externalId, a.externalId), "
+                    + "a.sharingScope = COALESCE(s.sharingScope, a.sharingScope), "
+                    + "a.timeZone = COALESCE(s.timeZone, a.timeZone), a.notifyByEmail = s.notifyByEmail, "
+                    + "a.migrationVersion = 1";
+        }
+
+        @Override
+        protected void loadRows(Statement loadStatement, String table, String columns, byte[] rows)
+                throws SQLException {
+            int columnCount = columns.split(",").length;
+            String placeholders = String.join(", ", Collections.nCopies(columnCount, "?"));
+            try (PreparedStatement statement = loadStatement.getConnection()
+                    .prepareStatement("INSERT INTO " + table + " (" + columns + ") VALUES (" + placeholders + ")")) {
+                for (String line : new String(rows, StandardCharsets.UTF_8).split("\n")) {
+                    String[] fields = line.split("\t", -1);
+                    assertEquals(columnCount, fields.length);
+                    for (int i = 0; i < fields.length; i++) {
+                        statement.setString(i + 1, unescape(fields[i]));
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+
+    private TestDatabase bulkDatabase;
+    private TestDatabase batchDatabase;
+    private Connection bulkConnection;
+    private Connection batchConnection;
+
+    @Before
+    public void before() throws Exception {
+        bulkDatabase = new TestDatabase();
+        batchDatabase = new TestDatabase();
+        bulkConnection = bulkDatabase.connect();
+        batchConnection = batchDatabase.connect();
+    }
+
+    @After
+    public void after() throws Exception {
+        bulkConnection.close();
+        batchConnection.close();
+        bulkDatabase.close();
+        batchDatabase.close();
+    }
+
+    @Test
+    public void matchesTheRowByRowWriter() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (int i = 0; i < UtilsTest.TEST_JSON.length; i++) {
+            accounts.put("id" + i, UtilsTest.TEST_JSON[i].replaceAll("'", "\""));
+        }
+        accounts.put("tricky", "{\"EXTERNAL_IDENTIFIER\":\"tab\\there\\\\N\",\"TIME_ZONE\":\"line\\nbreak\\\\\","
+                + "\"LANGUAGES\":\"O'Brien,\\\\N\",\"DATA_GROUPS\":\"é\"}");
+        for (String id : accounts.keySet()) {
+            bulkDatabase.insertAccount(id, "hc", 0);
+            batchDatabase.insertAccount(id, "hc", 0);
+        }
+        // Existing values survive when an option is not set
+        for (Connection connection : Lists.newArrayList(bulkConnection, batchConnection)) {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE Accounts SET timeZone = '+03:00' WHERE id = 'id0'");
+            }
+        }
+
+        assertEquals(accounts.size(), new H2BulkLoadAccountWriter().write(bulkConnection, accounts));
+        assertEquals(accounts.size(), new BatchAccountWriter().write(batchConnection, accounts));
+
+        for (String sql : new String[] {
+                "SELECT id, externalId, sharingScope, timeZone, notifyByEmail, migrationVersion FROM Accounts "
+                        + "ORDER BY id",
+                "SELECT accountId, language FROM AccountLanguages ORDER BY accountId, language",
+                "SELECT accountId, dataGroup FROM AccountDataGroups ORDER BY accountId, dataGroup" }) {
+            assertEquals(sql, dump(batchConnection, sql), dump(bulkConnection, sql));
+        }
+        assertEquals(Lists.newArrayList("[tab\there\\N, line\nbreak\\]"),
+                dump(bulkConnection, "SELECT externalId, timeZone FROM Accounts WHERE id = 'tricky'"));
+    }
+
+    @Test
+    public void failedChunkFallsBackToIsolatingAccounts() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (String id : new String[] { "id1", "id2", "id3" }) {
+            bulkDatabase.insertAccount(id, "hc", 0);
+            accounts.put(id, "{\"LANGUAGES\":\"en\"}");
+        }
+        accounts.put("id2", "{\"LANGUAGES\":\"" + Strings.repeat("x", 256) + "\"}");
+
+        assertEquals(2, new H2BulkLoadAccountWriter().write(bulkConnection, accounts));
+
+        assertEquals(Lists.newArrayList("[id1]", "[id3]"),
+                dump(bulkConnection, "SELECT id FROM Accounts WHERE migrationVersion = 1 ORDER BY id"));
+    }
+
+    @Test
+    public void loadWarningFallsBackToIsolatingAccounts() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (String id : new String[] { "id1", "id2" }) {
+            bulkDatabase.insertAccount(id, "hc", 0);
+            accounts.put(id, "{\"LANGUAGES\":\"en\"}");
+        }
+        // How LOAD DATA LOCAL reports a value it truncated, instead of failing
+        Connection connection = spy(bulkConnection);
+        doAnswer(invocation -> {
+            Statement statement = spy((Statement) invocation.callRealMethod());
+            doReturn(new SQLWarning("Data truncated for column 'language' at row 1")).when(statement).getWarnings();
+            return statement;
+        }).when(connection).createStatement();
+
+        MigrationMetrics metrics = new MigrationMetrics();
+        assertEquals(2, new H2BulkLoadAccountWriter(metrics).write(connection, accounts));
+
+        assertEquals(1, metrics.getRollbacks());
+        assertEquals(Lists.newArrayList("[id1, en]", "[id2, en]"),
+                dump(bulkConnection, "SELECT accountId, language FROM AccountLanguages ORDER BY accountId"));
+    }
+
+    @Test
+    public void driverThatCannotStreamRowsFallsBackToBatches() throws Exception {
+        bulkDatabase.insertAccount("id1", "hc", 0);
+        // Loads rows the way it would with Connector/J, which H2's statements do not support
+        BulkLoadAccountWriter writer = new BulkLoadAccountWriter() {
+            @Override
+            protected String getUpdateAccountsSql() {
+                throw new AssertionError("The load should have failed");
+            }
+        };
+
+        assertEquals(1, writer.write(bulkConnection, Collections.singletonMap("id1", "{\"LANGUAGES\":\"en\"}")));
+
+        assertEquals(Lists.newArrayList("[id1, en]"),
+                dump(bulkConnection, "SELECT accountId, language FROM AccountLanguages ORDER BY accountId"));
+    }
+
+    @Test
+    public void stagingColumnsMatchTheTargetColumns() throws Exception {
+        try (Statement statement = bulkConnection.createStatement()) {
+            statement.execute("ALTER TABLE AccountLanguages ALTER COLUMN language VARCHAR(10)");
+        }
+        bulkDatabase.insertAccount("id1", "hc", 0);
+
+        assertEquals(1, new H2BulkLoadAccountWriter().write(bulkConnection,
+                Collections.singletonMap("id1", "{\"LANGUAGES\":\"en\"}")));
+
+        // A value too long for the target is too long to stage, instead of being truncated by LOAD DATA LOCAL
+        try (ResultSet columns = bulkConnection.getMetaData().getColumns(null, null,
+                BulkLoadAccountWriter.STAGING_LANGUAGES.toUpperCase(), "LANGUAGE")) {
+            assertTrue(columns.next());
+            assertEquals(10, columns.getInt("COLUMN_SIZE"));
+        }
+    }
+
+    @Test
+    public void chunkCanBeWrittenAgain() throws Exception {
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (String id : new String[] { "id1", "id2" }) {
+            bulkDatabase.insertAccount(id, "hc", 0);
+            accounts.put(id, "{\"LANGUAGES\":\"en,fr,en\",\"DATA_GROUPS\":\"group1\"}");
+        }
+        try (Statement statement = bulkConnection.createStatement()) {
+            statement.executeUpdate("INSERT INTO AccountLanguages (accountId, language) VALUES ('id2', 'en')");
+        }
+
+        MigrationMetrics metrics = new MigrationMetrics();
+        H2BulkLoadAccountWriter writer = new H2BulkLoadAccountWriter(metrics);
+        assertEquals(2, writer.write(bulkConnection, accounts));
+        assertEquals(2, writer.write(bulkConnection, accounts));
+
+        assertEquals(Lists.newArrayList("[id1, en]", "[id1, fr]", "[id2, en]", "[id2, fr]"),
+                dump(bulkConnection, "SELECT accountId, language FROM AccountLanguages ORDER BY accountId, language"));
+        assertEquals(Lists.newArrayList("[id1, group1]", "[id2, group1]"),
+                dump(bulkConnection, "SELECT accountId, dataGroup FROM AccountDataGroups ORDER BY accountId"));
+        // Nothing fell back to the row-by-row writer
+        assertEquals(0, metrics.getRollbacks());
+    }
+
+    @Test
+    public void escapesFieldsForLoadData() {
+        StringBuilder sb = new StringBuilder();
+        BulkLoadAccountWriter.appendField(sb, null).append('|');
+        BulkLoadAccountWriter.appendField(sb, "a\tb\nc\rd\\e\0f");
+        assertEquals("\\N|a\\tb\\nc\\rd\\\\e\\0f", sb.toString());
+    }
+
+    private static String unescape(String field) {
+        if ("\\N".equals(field)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\') {
+                char next = field.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next == '0' ? '\0' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static List<String> dump(Connection connection, String sql) throws Exception {
+        List<String> rows = new ArrayList<>();
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 1; i <= columns; i++) {
+                    row.add(rs.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        }
+        return rows;
+    }
+}
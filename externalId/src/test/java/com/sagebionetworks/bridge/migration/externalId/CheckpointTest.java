@@ -0,0 +1,171 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestDatabase database;
+    private ConnectionPool pool;
+    private Path file;
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        pool = database.pool(1);
+        file = new File(folder.getRoot(), "checkpoint").toPath();
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.close();
+        database.close();
+    }
+
+    private static final List<AccountPartition> ONE = Collections.singletonList(AccountPartition.all());
+    private static final List<AccountPartition> TWO = AccountPartition.fromBoundaries(Lists.newArrayList("id3"));
+
+    @Test
+    public void savesAndLoadsPositionsAndBoundaries() throws Exception {
+        Checkpoint checkpoint = Checkpoint.create(file, TWO);
+        checkpoint.update(TWO.get(1), "id5", 10, 8);
+
+        Checkpoint loaded = Checkpoint.load(file, 2);
+        assertEquals(Lists.newArrayList("id3"), AccountPartition.getBoundaries(loaded.getPartitions()));
+        assertEquals("id3", loaded.getPartitions().get(1).getLowerBound());
+        assertEquals("", loaded.get(TWO.get(0)).getLastId());
+        assertEquals("id5", loaded.get(TWO.get(1)).getLastId());
+        assertEquals(10, loaded.get(TWO.get(1)).getRead());
+        assertEquals(8, loaded.get(TWO.get(1)).getMigrated());
+        assertFalse(Files.exists(file.resolveSibling("checkpoint.tmp")));
+    }
+
+    @Test
+    public void savesAtMostOncePerIntervalUntilFlushed() throws Exception {
+        AccountPartition partition = AccountPartition.all();
+        Checkpoint checkpoint = Checkpoint.create(file, ONE, 60000);
+        checkpoint.update(partition, "id1", 1, 1);
+        checkpoint.update(partition, "id2", 2, 2);
+        checkpoint.update(partition, "id3", 3, 3);
+        assertEquals("id1", Checkpoint.load(file, 1).get(partition).getLastId());
+
+        checkpoint.flush();
+        assertEquals("id3", Checkpoint.load(file, 1).get(partition).getLastId());
+        assertEquals(3, Checkpoint.load(file, 1).get(partition).getMigrated());
+    }
+
+    @Test
+    public void inMemoryCopyNeverSavesOverTheFile() throws Exception {
+        Checkpoint.create(file, ONE).update(AccountPartition.all(), "id5", 6, 6);
+
+        Checkpoint dryRun = Checkpoint.loadInMemory(file, 1);
+        assertEquals("id5", dryRun.get(AccountPartition.all()).getLastId());
+        dryRun.update(AccountPartition.all(), "id9", 10, 10);
+
+        assertEquals("id5", Checkpoint.load(file, 1).get(AccountPartition.all()).getLastId());
+    }
+
+    @Test
+    public void cannotResumeWithDifferentPartitions() throws Exception {
+        Checkpoint.create(file, TWO).update(TWO.get(0), "id1", 1, 1);
+        try {
+            Checkpoint.load(file, 3);
+            fail("Should have thrown an exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void scanCheckpointsSaveSegmentPositions() throws Exception {
+        Checkpoint checkpoint = Checkpoint.createScan(file, 2);
+        checkpoint.update(0, "hc7", 20, 12);
+        checkpoint.update(1, null, 30, 25);
+        checkpoint.flush();
+
+        Checkpoint loaded = Checkpoint.loadScan(file, 2);
+        assertEquals("hc7", loaded.get(0).getLastId());
+        assertEquals(12, loaded.get(0).getMigrated());
+        // A finished segment
+        assertNull(loaded.get(1).getLastId());
+        assertEquals(30, loaded.get(1).getRead());
+    }
+
+    @Test
+    public void scanAndPartitionCheckpointsCannotBeResumedAsEachOther() throws Exception {
+        Checkpoint.createScan(file, 1).update(0, "hc1", 1, 1);
+        try {
+            Checkpoint.load(file, 1);
+            fail("Should have thrown an exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Checkpoint.create(file, ONE).update(AccountPartition.all(), "id1", 1, 1);
+        try {
+            Checkpoint.loadScan(file, 1);
+            fail("Should have thrown an exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void resumedWorkerContinuesAfterLastCommittedPage() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            database.insertAccount("id" + i, "hc" + i, 0);
+        }
+        // This writer doesn't update migrationVersion, so only the checkpoint can prevent a rescan
+        Map<String, String> written = new TreeMap<>();
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> {
+            written.putAll(accounts);
+            return accounts.size();
+        };
+        ParticipantOptionsFetcher fetcher = new ParticipantOptionsFetcher(null, "table") {
+            @Override
+            public Map<String, String> fetch(Collection<String> healthCodes) {
+                Map<String, String> nodes = new TreeMap<>();
+                for (String healthCode : healthCodes) {
+                    nodes.put(healthCode, ParticipantOptionsFetcher.EMPTY_DATA);
+                }
+                return nodes;
+            }
+        };
+        AccountPartition partition = AccountPartition.all();
+
+        // The first run stops after six accounts
+        Checkpoint checkpoint = Checkpoint.create(file, ONE);
+        new MigrationPipeline(pool, () -> fetcher, writer, checkpoint, new MigrationMetrics(), 1, 2, 3, 6).call();
+        assertEquals(6, written.size());
+
+        written.clear();
+        checkpoint = Checkpoint.load(file, 1);
+        assertEquals("id5", checkpoint.get(partition).getLastId());
+        new MigrationPipeline(pool, () -> fetcher, writer, checkpoint, new MigrationMetrics(), 1, 2, 3, 0).call();
+
+        assertEquals(Lists.newArrayList("id6", "id7", "id8", "id9"), Lists.newArrayList(written.keySet()));
+        assertEquals(10, Checkpoint.load(file, 1).get(partition).getMigrated());
+    }
+}
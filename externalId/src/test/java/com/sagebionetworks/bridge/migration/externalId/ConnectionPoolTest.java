@@ -0,0 +1,133 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConnectionPoolTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private ConnectionPool pool(int size) {
+        return new ConnectionPool(size, () -> {
+            created.incrementAndGet();
+            Connection connection = mock(Connection.class);
+            when(connection.isValid(anyInt())).thenReturn(true);
+            return connection;
+        });
+    }
+
+    @Test
+    public void reusesReleasedConnections() throws Exception {
+        ConnectionPool pool = pool(2);
+        Connection first = pool.borrow();
+        pool.release(first);
+        Connection second = pool.borrow();
+
+        assertSame(first, second);
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void replacesInvalidConnections() throws Exception {
+        ConnectionPool pool = pool(1);
+        Connection first = pool.borrow();
+        when(first.isValid(anyInt())).thenReturn(false);
+        pool.release(first);
+
+        Connection second = pool.borrow();
+        assertNotSame(first, second);
+        verify(first).close();
+    }
+
+    @Test
+    public void releaseRollsBackAnOpenTransaction() throws Exception {
+        ConnectionPool pool = pool(1);
+        Connection connection = pool.borrow();
+        when(connection.getAutoCommit()).thenReturn(false);
+        pool.release(connection);
+
+        verify(connection).rollback();
+        verify(connection).setAutoCommit(true);
+        assertSame(connection, pool.borrow());
+    }
+
+    @Test
+    public void releaseClosesAConnectionThatCannotBeReset() throws Exception {
+        ConnectionPool pool = pool(1);
+        Connection first = pool.borrow();
+        when(first.getAutoCommit()).thenReturn(false);
+        doThrow(new SQLException("Communications link failure")).when(first).rollback();
+        pool.release(first);
+
+        verify(first).close();
+        assertNotSame(first, pool.borrow());
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void blocksWhenExhausted() throws Exception {
+        ConnectionPool pool = pool(1);
+        Connection first = pool.borrow();
+
+        CountDownLatch borrowed = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                pool.release(pool.borrow());
+                borrowed.countDown();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        assertFalse(borrowed.await(100, TimeUnit.MILLISECONDS));
+
+        pool.release(first);
+        assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void closeClosesIdleConnections() throws Exception {
+        ConnectionPool pool = pool(1);
+        Connection connection = pool.borrow();
+        pool.release(connection);
+        pool.close();
+
+        verify(connection).close();
+    }
+
+    @Test
+    public void closeClosesBorrowedConnections() throws Exception {
+        ConnectionPool pool = pool(2);
+        Connection idle = pool.borrow();
+        Connection borrowed = pool.borrow();
+        pool.release(idle);
+        pool.close();
+
+        verify(idle).close();
+        verify(borrowed).close();
+
+        // Released after the pool closed: neither pooled nor closed a second time
+        pool.release(borrowed);
+        verify(borrowed).close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class MigrationMetricsTest {
+
+    @Test
+    public void histogramPercentilesAreWithinBucketResolution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1ms to 100ms in 1ms steps
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(100, histogram.getCount());
+        assertWithin(50000, histogram.getPercentileMicros(50));
+        assertWithin(99000, histogram.getPercentileMicros(99));
+        assertEquals(100000, histogram.getPercentileMicros(100));
+        assertEquals(50500, histogram.getMeanMicros(), 0.1);
+    }
+
+    @Test
+    public void histogramRecordsSeveralEventsAtOnce() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1), 99);
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100), 1);
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(500), 0);
+        assertEquals(100, histogram.getCount());
+        assertWithin(1000, histogram.getPercentileMicros(99));
+        assertEquals(100000, histogram.getPercentileMicros(100));
+        assertEquals(1990, histogram.getMeanMicros(), 0.1);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(99));
+        assertEquals(0, histogram.getMeanMicros(), 0.0);
+    }
+
+    @Test
+    public void countersAndJson() throws Exception {
+        MigrationMetrics metrics = new MigrationMetrics();
+        metrics.setBacklog(1000);
+        metrics.recordMigrated(95);
+        metrics.recordFailed(5);
+        metrics.recordRollback();
+        metrics.commit.record(TimeUnit.MILLISECONDS.toNanos(3));
+        Thread.sleep(10);
+
+        assertTrue(metrics.getAccountsPerSecond() > 0);
+        assertTrue(metrics.getEtaSeconds() >= 0);
+        assertTrue(metrics.summary().startsWith("Processed 100/1000 (10.0%)"));
+
+        JsonNode json = metrics.toJson();
+        assertEquals(95, json.get("migrated").longValue());
+        assertEquals(5, json.get("failed").longValue());
+        assertEquals(1, json.get("rollbacks").longValue());
+        assertEquals(1, json.get("commit").get("count").longValue());
+        assertEquals(0, json.get("fetch").get("count").longValue());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        // Four buckets per doubling gives a relative error of at most 2^(1/4) - 1
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.19);
+    }
+}
@@ -0,0 +1,194 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MigrationPipelineTest {
+
+    private TestDatabase database;
+    private ConnectionPool pool;
+    private AtomicInteger fetches;
+    private ParticipantOptionsFetcher fetcher;
+    private MigrationMetrics metrics;
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        pool = database.pool(3);
+        for (int i = 0; i < 250; i++) {
+            database.insertAccount(String.format("id%03d", i), "hc" + i, 0);
+        }
+        fetches = new AtomicInteger();
+        fetcher = new ParticipantOptionsFetcher(null, "table") {
+            @Override
+            public Map<String, String> fetch(Collection<String> healthCodes) {
+                fetches.incrementAndGet();
+                Map<String, String> records = new HashMap<>();
+                for (String healthCode : healthCodes) {
+                    records.put(healthCode, ParticipantOptionsFetcher.EMPTY_DATA);
+                }
+                return records;
+            }
+        };
+        metrics = new MigrationMetrics();
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.close();
+        database.close();
+    }
+
+    @Test
+    public void checkpointWaitsForEarlierBatchesOfThePartition() throws Exception {
+        Checkpoint checkpoint = Checkpoint.inMemory(AccountPartition.split(pool, 1));
+        AccountPartition partition = AccountPartition.all();
+        // Pages of 200 accounts are fetched in two batches; the last page has one batch of 50
+        CountDownLatch laterBatchesWritten = new CountDownLatch(2);
+        AtomicReference<String> positionWhileBlocked = new AtomicReference<>();
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> {
+            if (accounts.containsKey("id000")) {
+                assertTrue(laterBatchesWritten.await(5, TimeUnit.SECONDS));
+                positionWhileBlocked.set(checkpoint.get(partition).getLastId());
+            } else {
+                laterBatchesWritten.countDown();
+            }
+            return accounts.size();
+        };
+
+        int migrated = new MigrationPipeline(pool, () -> fetcher, writer, checkpoint, metrics, 2, 4, 200, 0)
+                .call();
+
+        assertEquals(250, migrated);
+        assertEquals("", positionWhileBlocked.get());
+        assertEquals("id249", checkpoint.get(partition).getLastId());
+        assertEquals(250, checkpoint.get(partition).getRead());
+        assertEquals(250, checkpoint.get(partition).getMigrated());
+        assertEquals(3, metrics.enqueueWait.getCount());
+    }
+
+    @Test
+    public void limitIsNotExceededWhenItDoesNotDivideBetweenReaders() throws Exception {
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> accounts.size();
+        Checkpoint checkpoint = Checkpoint.inMemory(AccountPartition.split(pool, 3));
+
+        int migrated = new MigrationPipeline(pool, () -> fetcher, writer, checkpoint, metrics, 1, 4, 100, 100)
+                .call();
+
+        assertEquals(100, migrated);
+        assertEquals(34, checkpoint.get(checkpoint.getPartitions().get(0)).getRead());
+        assertEquals(33, checkpoint.get(checkpoint.getPartitions().get(1)).getRead());
+        assertEquals(33, checkpoint.get(checkpoint.getPartitions().get(2)).getRead());
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueBlocksReaders() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> {
+            release.await();
+            return accounts.size();
+        };
+        MigrationPipeline pipeline = new MigrationPipeline(pool, () -> fetcher, writer,
+                Checkpoint.inMemory(AccountPartition.split(pool, 1)), metrics, 1, 1, 100, 0);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> future = executor.submit(pipeline);
+            // One batch held by the writer, one in the queue, and one waiting for space in the queue
+            while (fetches.get() < 3) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(3, fetches.get());
+
+            release.countDown();
+            assertEquals(250, (int) future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void slowCheckpointSaveDoesNotHoldUpTheReader() throws Exception {
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Checkpoint checkpoint = new Checkpoint(null, AccountPartition.split(pool, 1)) {
+            @Override
+            public void update(AccountPartition partition, String lastId, long read, long migrated)
+                    throws IOException {
+                saving.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.update(partition, lastId, read, migrated);
+            }
+        };
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> accounts.size();
+        // Five pages of one batch each, and room in the queue for all but the first
+        ParticipantOptionsFetcher slowFetcher = new ParticipantOptionsFetcher(null, "table") {
+            @Override
+            public Map<String, String> fetch(Collection<String> healthCodes) throws Exception {
+                // Don't read the third page until the first is being saved
+                if (fetches.get() == 2) {
+                    assertTrue(saving.await(5, TimeUnit.SECONDS));
+                }
+                return fetcher.fetch(healthCodes);
+            }
+        };
+        MigrationPipeline pipeline = new MigrationPipeline(pool, () -> slowFetcher, writer, checkpoint, metrics, 1,
+                4, 50, 0);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> future = executor.submit(pipeline);
+            // The writer is stuck saving the first page, but the reader can still start the others
+            while (fetches.get() < 5) {
+                Thread.sleep(10);
+            }
+
+            release.countDown();
+            assertEquals(250, (int) future.get());
+            assertEquals(250, checkpoint.get(AccountPartition.all()).getRead());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writerFailureStopsThePipeline() throws Exception {
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> {
+            throw new IllegalStateException("MySQL is gone");
+        };
+        Checkpoint checkpoint = Checkpoint.inMemory(AccountPartition.split(pool, 2));
+        try {
+            new MigrationPipeline(pool, () -> fetcher, writer, checkpoint, metrics, 1, 1, 100, 0).call();
+            fail("Should have thrown an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("", checkpoint.get(checkpoint.getPartitions().get(0)).getLastId());
+        assertEquals("", checkpoint.get(checkpoint.getPartitions().get(1)).getLastId());
+    }
+}
@@ -0,0 +1,149 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class MigrationVerifierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestDatabase database;
+    private ConnectionPool pool;
+    private Map<String, String> records;
+    private ParticipantOptionsFetcher fetcher;
+    private Path report;
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        pool = database.pool(3);
+        records = new HashMap<>();
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            String id = String.format("id%03d", i);
+            database.insertAccount(id, "hc" + i, 0);
+            records.put("hc" + i, UtilsTest.TEST_JSON[i % UtilsTest.TEST_JSON.length].replaceAll("'", "\""));
+            accounts.put(id, records.get("hc" + i));
+        }
+        // Not migrated, so not checked
+        database.insertAccount("id999", "hc999", 0);
+        try (Connection connection = database.connect()) {
+            new BatchAccountWriter().write(connection, accounts);
+        }
+        fetcher = new ParticipantOptionsFetcher(null, "table") {
+            @Override
+            public Map<String, String> fetch(Collection<String> healthCodes) {
+                Map<String, String> fetched = new HashMap<>();
+                for (String healthCode : healthCodes) {
+                    fetched.put(healthCode, records.getOrDefault(healthCode, ParticipantOptionsFetcher.EMPTY_DATA));
+                }
+                return fetched;
+            }
+        };
+        report = new File(folder.getRoot(), "report.tsv").toPath();
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.close();
+        database.close();
+    }
+
+    private MigrationVerifier verifier() throws Exception {
+        return new MigrationVerifier(pool, () -> fetcher, AccountPartition.split(pool, 3), 7, report);
+    }
+
+    @Test
+    public void migratedAccountsMatch() throws Exception {
+        MigrationVerifier verifier = verifier();
+
+        assertEquals(0L, (long) verifier.call());
+
+        assertEquals(200, verifier.getChecked());
+        assertEquals(Lists.newArrayList(MigrationVerifier.REPORT_HEADER),
+                Files.readAllLines(report, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void reportsEveryDifference() throws Exception {
+        // id000 has external ID BBB and language en; id004 has data groups group1 and group2
+        execute("UPDATE Accounts SET externalId = 'CCC', notifyByEmail = TRUE WHERE id = 'id000'");
+        execute("DELETE FROM AccountLanguages WHERE accountId = 'id009' AND language = 'fr'");
+        execute("DELETE FROM AccountDataGroups WHERE accountId = 'id004' AND dataGroup = 'group2'");
+        // The record has no time zone, so the column is not checked
+        execute("UPDATE Accounts SET timeZone = '+03:00' WHERE id = 'id001'");
+
+        MigrationVerifier verifier = verifier();
+        assertEquals(3L, (long) verifier.call());
+
+        List<String> lines = Files.readAllLines(report, StandardCharsets.UTF_8);
+        assertEquals(MigrationVerifier.REPORT_HEADER, lines.get(0));
+        List<String> differences = lines.subList(1, lines.size());
+        differences.sort(null);
+        assertEquals(Lists.newArrayList("id000\texternalId\tBBB\tCCC", "id000\tnotifyByEmail\tfalse\ttrue",
+                "id004\tdataGroups\t[group1, group2]\t[group1]", "id009\tlanguages\t[en, fr]\t[en]"),
+                differences);
+    }
+
+    @Test
+    public void accountsWithSeveralLanguagesAndDataGroupsAreReadOnce() throws Exception {
+        records.put("hc4", "{\"LANGUAGES\":\"en,fr,de\",\"DATA_GROUPS\":\"group1,group2\"}");
+        execute("INSERT INTO AccountLanguages (accountId, language) VALUES ('id004', 'fr')");
+        execute("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('id004', 'group3')");
+
+        MigrationVerifier verifier = verifier();
+        assertEquals(1L, (long) verifier.call());
+
+        assertEquals(200, verifier.getChecked());
+        List<String> lines = Files.readAllLines(report, StandardCharsets.UTF_8);
+        // group3 is not in the record, but the migration keeps rows the account already had
+        assertEquals(Lists.newArrayList(MigrationVerifier.REPORT_HEADER,
+                "id004\tlanguages\t[de, en, fr]\t[en, fr]"), lines);
+    }
+
+    @Test
+    public void languagesAndDataGroupsTheRecordDoesNotListAreAllowed() throws Exception {
+        // As if the account had them before it was migrated
+        execute("INSERT INTO AccountLanguages (accountId, language) VALUES ('id000', 'es')");
+        execute("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('id004', 'extra')");
+
+        assertEquals(0L, (long) verifier().call());
+    }
+
+    @Test
+    public void reportValuesAreEscaped() throws Exception {
+        execute("UPDATE Accounts SET externalId = 'C\tC\nC\\' WHERE id = 'id000'");
+
+        assertEquals(1L, (long) verifier().call());
+
+        List<String> lines = Files.readAllLines(report, StandardCharsets.UTF_8);
+        assertEquals(Lists.newArrayList(MigrationVerifier.REPORT_HEADER, "id000\texternalId\tBBB\tC\\tC\\nC\\\\"),
+                lines);
+    }
+
+    private void execute(String sql) throws Exception {
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
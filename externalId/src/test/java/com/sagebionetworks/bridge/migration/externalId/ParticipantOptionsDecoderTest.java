@@ -0,0 +1,114 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+public class ParticipantOptionsDecoderTest {
+
+    private final ParticipantOptionsDecoder decoder = new ParticipantOptionsDecoder();
+
+    @Test
+    public void matchesUtilsForRealLifeExamples() throws Exception {
+        ParticipantOptions options = new ParticipantOptions();
+        for (String json : UtilsTest.TEST_JSON) {
+            assertEquivalent(json.replaceAll("'", "\""), options);
+        }
+    }
+
+    @Test
+    public void matchesUtilsForEdgeCases() throws Exception {
+        ParticipantOptions options = new ParticipantOptions();
+        String[] examples = new String[] {
+            "{'EXTERNAL_IDENTIFIER':'  ','SHARING_SCOPE':'','TIME_ZONE':'-07:00'}",
+            "{'EMAIL_NOTIFICATIONS':true}",
+            "{'EMAIL_NOTIFICATIONS':false}",
+            "{'EMAIL_NOTIFICATIONS':'yes'}",
+            "{'EMAIL_NOTIFICATIONS':' '}",
+            "{'LANGUAGES':' en , fr ,,  de '}",
+            "{'LANGUAGES':',en,'}",
+            "{'DATA_GROUPS':'group1, ,group2\\t,\\tgroup3'}",
+            "{'DATA_GROUPS':'   '}",
+            "{'OTHER':{'LANGUAGES':'xx'},'LIST':[1,2,{'a':'b'}],'LANGUAGES':'en'}",
+            "{'LANGUAGES':'en','LANGUAGES':'fr'}"
+        };
+        for (String json : examples) {
+            assertEquivalent(json.replaceAll("'", "\""), options);
+        }
+    }
+
+    @Test
+    public void matchesUtilsForRandomLists() throws Exception {
+        ParticipantOptions options = new ParticipantOptions();
+        Random random = new Random(7);
+        char[] alphabet = new char[] { 'a', 'b', ',', ',', ' ', '\t', '\n' };
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(12); j > 0; j--) {
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            node.put("DATA_GROUPS", sb.toString());
+            assertEquivalent(node.toString(), options);
+        }
+    }
+
+    @Test
+    public void reusedRecordIsCleared() throws Exception {
+        ParticipantOptions options = new ParticipantOptions();
+        decoder.decode("{\"EXTERNAL_IDENTIFIER\":\"AAA\",\"EMAIL_NOTIFICATIONS\":false,\"LANGUAGES\":\"en\"}",
+                options);
+        decoder.decode("{}", options);
+
+        assertNull(options.getExternalId());
+        assertTrue(options.getNotifyByEmail());
+        assertTrue(options.getLanguages().isEmpty());
+    }
+
+    @Test
+    public void blankDataIsAllDefaults() throws Exception {
+        ParticipantOptions options = new ParticipantOptions();
+        decoder.decode("", options);
+        assertTrue(options.getNotifyByEmail());
+        assertTrue(options.getDataGroups().isEmpty());
+    }
+
+    @Test
+    public void growsForLongLists() throws Exception {
+        ParticipantOptions options = new ParticipantOptions();
+        decoder.decode("{\"DATA_GROUPS\":\"a,b,c,d,e,f,g,h,i,j\"}", options);
+        assertEquals(Lists.newArrayList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j"),
+                toList(options.getDataGroups()));
+    }
+
+    private void assertEquivalent(String json, ParticipantOptions options) throws Exception {
+        JsonNode node = UtilsTest.createJson(json);
+        decoder.decode(json, options);
+
+        assertEquals(json, Utils.getString(node, "EXTERNAL_IDENTIFIER"), options.getExternalId());
+        assertEquals(json, Utils.getString(node, "SHARING_SCOPE"), options.getSharingScope());
+        assertEquals(json, Utils.getString(node, "TIME_ZONE"), options.getTimeZone());
+        assertEquals(json, Utils.getBoolean(node, "EMAIL_NOTIFICATIONS", true), options.getNotifyByEmail());
+        assertEquals(json, Utils.getList(node, "LANGUAGES"), toList(options.getLanguages()));
+        assertEquals(json, Utils.getList(node, "DATA_GROUPS"), toList(options.getDataGroups()));
+    }
+
+    private static List<String> toList(CommaSeparatedList values) {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            list.add(values.get(i));
+        }
+        return list;
+    }
+}
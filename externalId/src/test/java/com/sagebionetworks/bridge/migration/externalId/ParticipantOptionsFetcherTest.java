@@ -0,0 +1,159 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.google.common.collect.Lists;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ParticipantOptionsFetcherTest {
+
+    private static final String TABLE = "ParticipantOptions";
+
+    private AmazonDynamoDBClient client;
+    private ParticipantOptionsFetcher fetcher;
+
+    @Before
+    public void before() throws Exception {
+        client = mock(AmazonDynamoDBClient.class);
+        fetcher = spy(new ParticipantOptionsFetcher(client, TABLE));
+        doNothing().when(fetcher).backoff(anyInt());
+    }
+
+    @Test
+    public void fetchesRecordsAndDefaultsMissingOnes() throws Exception {
+        BatchGetItemResult result = result(item("hc1", "{\"EXTERNAL_IDENTIFIER\":\"AAA\"}"));
+        when(client.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(result);
+
+        Map<String, String> records = fetcher.fetch(Lists.newArrayList("hc1", "hc2"));
+
+        assertEquals(2, records.size());
+        assertEquals("{\"EXTERNAL_IDENTIFIER\":\"AAA\"}", records.get("hc1"));
+        assertSame(ParticipantOptionsFetcher.EMPTY_DATA, records.get("hc2"));
+    }
+
+    @Test
+    public void splitsIntoBatchesOfOneHundredKeys() throws Exception {
+        when(client.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(result());
+
+        List<String> healthCodes = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            healthCodes.add("hc" + i);
+        }
+        // Duplicates are not allowed by DynamoDB, and should be removed
+        healthCodes.add("hc0");
+        Map<String, String> records = fetcher.fetch(healthCodes);
+        assertEquals(250, records.size());
+
+        ArgumentCaptor<BatchGetItemRequest> captor = ArgumentCaptor.forClass(BatchGetItemRequest.class);
+        verify(client, times(3)).batchGetItem(captor.capture());
+        List<BatchGetItemRequest> requests = captor.getAllValues();
+        assertEquals(100, requests.get(0).getRequestItems().get(TABLE).getKeys().size());
+        assertEquals(100, requests.get(1).getRequestItems().get(TABLE).getKeys().size());
+        assertEquals(50, requests.get(2).getRequestItems().get(TABLE).getKeys().size());
+    }
+
+    @Test
+    public void retriesUnprocessedKeys() throws Exception {
+        Map<String, AttributeValue> unprocessedKey = new HashMap<>();
+        unprocessedKey.put("healthDataCode", new AttributeValue().withS("hc2"));
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<>();
+        unprocessed.put(TABLE, new KeysAndAttributes().withKeys(Collections.singletonList(unprocessedKey)));
+
+        BatchGetItemResult first = result(item("hc1", "{\"LANGUAGES\":\"en\"}")).withUnprocessedKeys(unprocessed);
+        BatchGetItemResult second = result(item("hc2", "{\"DATA_GROUPS\":\"group1\"}"));
+        when(client.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(first, second);
+
+        Map<String, String> records = fetcher.fetch(Lists.newArrayList("hc1", "hc2"));
+
+        assertEquals("{\"LANGUAGES\":\"en\"}", records.get("hc1"));
+        assertEquals("{\"DATA_GROUPS\":\"group1\"}", records.get("hc2"));
+
+        ArgumentCaptor<BatchGetItemRequest> captor = ArgumentCaptor.forClass(BatchGetItemRequest.class);
+        verify(client, times(2)).batchGetItem(captor.capture());
+        assertSame(unprocessed, captor.getAllValues().get(1).getRequestItems());
+        verify(fetcher).backoff(1);
+    }
+
+    @Test
+    public void throttlingSlowsTheRateLimiter() throws Exception {
+        AdaptiveRateLimiter limiter = mock(AdaptiveRateLimiter.class);
+        fetcher = spy(new ParticipantOptionsFetcher(client, TABLE, limiter));
+        doNothing().when(fetcher).backoff(anyInt());
+        when(client.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenThrow(new ProvisionedThroughputExceededException("Slow down"))
+                .thenReturn(result(item("hc1", "{}")));
+
+        Map<String, String> records = fetcher.fetch(Lists.newArrayList("hc1"));
+
+        assertEquals(1, records.size());
+        verify(limiter, times(2)).acquire(1);
+        verify(limiter).onThrottle();
+        verify(limiter).onSuccess();
+    }
+
+    @Test
+    public void failsWhenKeysRemainUnprocessed() throws Exception {
+        Map<String, AttributeValue> unprocessedKey = new HashMap<>();
+        unprocessedKey.put("healthDataCode", new AttributeValue().withS("hc1"));
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<>();
+        unprocessed.put(TABLE, new KeysAndAttributes().withKeys(Collections.singletonList(unprocessedKey)));
+        when(client.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(result().withUnprocessedKeys(unprocessed));
+
+        try {
+            fetcher.fetch(Lists.newArrayList("hc1"));
+            fail("Should have thrown an exception");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("unprocessed"));
+        }
+        verify(client, times(ParticipantOptionsFetcher.MAX_ATTEMPTS)).batchGetItem(any(BatchGetItemRequest.class));
+    }
+
+    @SafeVarargs
+    private static BatchGetItemResult result(Map<String, AttributeValue>... items) {
+        // Copied element by element: handing the generic array on would risk heap pollution
+        List<Map<String, AttributeValue>> itemList = new ArrayList<>();
+        for (Map<String, AttributeValue> item : items) {
+            itemList.add(item);
+        }
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        responses.put(TABLE, itemList);
+        return new BatchGetItemResult().withResponses(responses);
+    }
+
+    private static Map<String, AttributeValue> item(String healthCode, String json) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("healthDataCode", new AttributeValue().withS(healthCode));
+        item.put("data", new AttributeValue().withS(json));
+        return item;
+    }
+}
@@ -0,0 +1,102 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class ParticipantOptionsSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private Map<String, String> records;
+
+    @Before
+    public void before() throws Exception {
+        file = new File(folder.getRoot(), "snapshot").toPath();
+        records = new TreeMap<>();
+        // Added out of order, and with a non-ASCII health code
+        for (int i = 99; i >= 0; i--) {
+            records.put("hc" + i, UtilsTest.TEST_JSON[i % UtilsTest.TEST_JSON.length].replaceAll("'", "\""));
+        }
+        records.put("hcé", "{\"EXTERNAL_IDENTIFIER\":\"ÄÖÜ\"}");
+        try (SnapshotWriter writer = new SnapshotWriter(file)) {
+            for (Map.Entry<String, String> entry : records.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void looksUpEveryRecord() throws Exception {
+        ParticipantOptionsSnapshot snapshot = ParticipantOptionsSnapshot.open(file);
+        assertEquals(101, snapshot.size());
+        for (Map.Entry<String, String> entry : records.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        assertNull(snapshot.get("hc100"));
+        assertNull(snapshot.get(""));
+        assertFalse(Files.exists(file.resolveSibling("snapshot.tmp")));
+    }
+
+    @Test
+    public void readsAcrossManySegments() throws Exception {
+        // Segments far smaller than the file, overlapping by more than the largest record
+        ParticipantOptionsSnapshot snapshot = ParticipantOptionsSnapshot.open(file, 64, 512);
+        for (Map.Entry<String, String> entry : records.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        Map<String, String> scanned = new TreeMap<>();
+        for (int segment = 0; segment < 3; segment++) {
+            snapshot.scan(segment, 3, scanned::put);
+        }
+        assertEquals(records, scanned);
+    }
+
+    @Test
+    public void fetcherDefaultsMissingRecords() throws Exception {
+        SnapshotParticipantOptionsFetcher fetcher = new SnapshotParticipantOptionsFetcher(
+                ParticipantOptionsSnapshot.open(file));
+
+        Map<String, String> fetched = fetcher.fetch(Lists.newArrayList("hc1", "hc2", "missing"));
+        assertEquals(records.get("hc1"), fetched.get("hc1"));
+        assertEquals(records.get("hc2"), fetched.get("hc2"));
+        assertSame(ParticipantOptionsSource.EMPTY_DATA, fetched.get("missing"));
+    }
+
+    @Test
+    public void rejectsAnIncompleteFile() throws Exception {
+        SnapshotWriter writer = new SnapshotWriter(file.resolveSibling("partial"));
+        writer.add("hc1", "{}");
+        writer.abort();
+        assertFalse(Files.exists(file.resolveSibling("partial")));
+
+        Path truncated = file.resolveSibling("truncated");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 8));
+        try {
+            ParticipantOptionsSnapshot.open(truncated);
+            fail("Should have thrown an exception");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
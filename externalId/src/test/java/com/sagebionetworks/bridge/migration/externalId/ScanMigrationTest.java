@@ -0,0 +1,212 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+public class ScanMigrationTest {
+
+    private static final String TABLE = "ParticipantOptions";
+    private static final int SEGMENTS = 3;
+
+    /** The contents of the fake ParticipantOptions table, healthCode to JSON. */
+    private final Map<String, String> table = new LinkedHashMap<>();
+    private final List<ScanRequest> scanRequests = new CopyOnWriteArrayList<>();
+    private TestDatabase database;
+    private ConnectionPool pool;
+    private AmazonDynamoDBClient client;
+
+    /** Records what would have been written, without touching the database. */
+    private static class RecordingWriter implements AccountWriter {
+        final Map<String, String> written = new ConcurrentHashMap<>();
+        final AtomicInteger largestBatch = new AtomicInteger();
+
+        @Override
+        public int write(Connection connection, Map<String, String> accounts) {
+            for (String userId : accounts.keySet()) {
+                assertFalse("Account written twice: " + userId, written.containsKey(userId));
+            }
+            written.putAll(accounts);
+            largestBatch.accumulateAndGet(accounts.size(), Math::max);
+            return accounts.size();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        pool = database.pool(SEGMENTS);
+        for (int i = 0; i < 250; i++) {
+            // Every fifth account has no ParticipantOptions record
+            if (i % 5 != 0) {
+                table.put("hc" + i, UtilsTest.TEST_JSON[i % UtilsTest.TEST_JSON.length].replaceAll("'", "\""));
+            }
+            // Every seventh record has already been migrated
+            database.insertAccount("id" + i, "hc" + i, (i % 7 == 0) ? 1 : 0);
+        }
+        // Records for accounts that don't exist are ignored
+        table.put("orphan", "{\"EXTERNAL_IDENTIFIER\":\"orphan\"}");
+
+        client = mock(AmazonDynamoDBClient.class);
+        when(client.scan(any(ScanRequest.class))).thenAnswer(invocation -> {
+            scanRequests.add((ScanRequest) invocation.getArguments()[0]);
+            return scan((ScanRequest) invocation.getArguments()[0]);
+        });
+        when(client.batchGetItem(any(BatchGetItemRequest.class))).thenAnswer(invocation -> {
+            return batchGet((BatchGetItemRequest) invocation.getArguments()[0]);
+        });
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.close();
+        database.close();
+    }
+
+    @Test
+    public void scanMatchesGetItemPath() throws Exception {
+        RecordingWriter getItemWriter = new RecordingWriter();
+        int expected = new MigrationPipeline(pool, () -> new ParticipantOptionsFetcher(client, TABLE),
+                getItemWriter, Checkpoint.inMemory(AccountPartition.split(pool, 1)), new MigrationMetrics(), 1, 2, 40,
+                0).call();
+
+        RecordingWriter scanWriter = new RecordingWriter();
+        MigrationMetrics metrics = new MigrationMetrics();
+        int migrated = new ScanMigration(pool, () -> new ParticipantOptionsFetcher(client, TABLE), scanWriter,
+                Checkpoint.inMemoryScan(SEGMENTS), metrics, SEGMENTS, 40, 15, 0, false).call();
+
+        assertEquals(214, expected);
+        assertEquals(expected, migrated);
+        assertEquals(migrated, metrics.latency.getCount());
+        assertEquals(getItemWriter.written, scanWriter.written);
+        // Batches are cut at the configured size, not at the BatchGetItem limit
+        assertEquals(15, scanWriter.largestBatch.get());
+    }
+
+    @Test
+    public void resumedScanContinuesAfterTheLastWrittenPage() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("checkpoint");
+        Map<String, String> written = new ConcurrentHashMap<>();
+        AtomicInteger writesLeft = new AtomicInteger(2);
+        // Marks accounts as migrated, as the real writers do, failing once it runs out of writes
+        AccountWriter writer = (Connection connection, Map<String, String> accounts) -> {
+            if (writesLeft.getAndDecrement() <= 0) {
+                throw new IllegalStateException("Write failed");
+            }
+            try (PreparedStatement statement = connection
+                    .prepareStatement("UPDATE Accounts SET migrationVersion = 1 WHERE id = ?")) {
+                for (String userId : accounts.keySet()) {
+                    assertFalse("Account written twice: " + userId, written.containsKey(userId));
+                    statement.setString(1, userId);
+                    statement.executeUpdate();
+                }
+            }
+            written.putAll(accounts);
+            return accounts.size();
+        };
+
+        try {
+            new ScanMigration(pool, () -> new ParticipantOptionsFetcher(client, TABLE), writer,
+                    Checkpoint.createScan(file, 1), new MigrationMetrics(), 1, 40, 15, 0, false).call();
+            fail("Should have thrown an exception");
+        } catch (ExecutionException e) {
+            assertEquals("Write failed", e.getCause().getMessage());
+        }
+        assertEquals(30, written.size());
+        String scannedPast = Checkpoint.loadScan(file, 1).get(0).getLastId();
+
+        writesLeft.set(Integer.MAX_VALUE);
+        scanRequests.clear();
+        int migrated = new ScanMigration(pool, () -> new ParticipantOptionsFetcher(client, TABLE), writer,
+                Checkpoint.loadScan(file, 1), new MigrationMetrics(), 1, 40, 15, 0, false).call();
+
+        // Only the pages after the checkpoint are scanned again
+        assertEquals(scannedPast, scanRequests.get(0).getExclusiveStartKey().get("healthDataCode").getS());
+        assertEquals(214, written.size());
+        assertEquals(184, migrated);
+        assertNull(Checkpoint.loadScan(file, 1).get(0).getLastId());
+    }
+
+    /**
+     * Items are assigned to segments by position, and each segment is returned in pages of 10 items.
+     */
+    private ScanResult scan(ScanRequest request) {
+        List<String> keys = new ArrayList<>(table.keySet());
+        List<String> segment = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % request.getTotalSegments() == request.getSegment()) {
+                segment.add(keys.get(i));
+            }
+        }
+        int start = 0;
+        if (request.getExclusiveStartKey() != null) {
+            start = segment.indexOf(request.getExclusiveStartKey().get("healthDataCode").getS()) + 1;
+        }
+
+        int end = Math.min(start + 10, segment.size());
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (String healthCode : segment.subList(start, end)) {
+            items.add(item(healthCode));
+        }
+        ScanResult result = new ScanResult().withItems(items).withScannedCount(items.size());
+        if (end < segment.size()) {
+            Map<String, AttributeValue> lastKey = new HashMap<>();
+            lastKey.put("healthDataCode", new AttributeValue().withS(segment.get(end - 1)));
+            result.withLastEvaluatedKey(lastKey);
+        }
+        return result;
+    }
+
+    private BatchGetItemResult batchGet(BatchGetItemRequest request) {
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (Map<String, AttributeValue> key : request.getRequestItems().get(TABLE).getKeys()) {
+            String healthCode = key.get("healthDataCode").getS();
+            if (table.containsKey(healthCode)) {
+                items.add(item(healthCode));
+            }
+        }
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        responses.put(TABLE, items);
+        return new BatchGetItemResult().withResponses(responses);
+    }
+
+    private Map<String, AttributeValue> item(String healthCode) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("healthDataCode", new AttributeValue().withS(healthCode));
+        item.put("data", new AttributeValue().withS(table.get(healthCode)));
+        return item;
+    }
+}
@@ -0,0 +1,224 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Each "process" here has its own connection pool and lease owner, as separate JVMs would.
+ */
+public class ShardedMigrationTest {
+
+    private static final long LEASE_MILLIS = 3000;
+
+    private TestDatabase database;
+    private List<ConnectionPool> pools;
+    private List<ShardLeases> leases;
+    private Map<String, String> written;
+    private AccountWriter writer;
+    private ParticipantOptionsFetcher fetcher;
+
+    @Before
+    public void before() throws Exception {
+        database = new TestDatabase();
+        for (int i = 0; i < 300; i++) {
+            database.insertAccount(String.format("id%03d", i), "hc" + i, 0);
+        }
+        pools = new ArrayList<>();
+        leases = new ArrayList<>();
+        written = new ConcurrentHashMap<>();
+        writer = (Connection connection, Map<String, String> accounts) -> {
+            for (String userId : accounts.keySet()) {
+                if (written.put(userId, accounts.get(userId)) != null) {
+                    fail("Account migrated twice: " + userId);
+                }
+            }
+            return accounts.size();
+        };
+        fetcher = new ParticipantOptionsFetcher(null, "table") {
+            @Override
+            public Map<String, String> fetch(Collection<String> healthCodes) {
+                Map<String, String> records = new HashMap<>();
+                for (String healthCode : healthCodes) {
+                    records.put(healthCode, ParticipantOptionsFetcher.EMPTY_DATA);
+                }
+                return records;
+            }
+        };
+    }
+
+    @After
+    public void after() throws Exception {
+        for (ShardLeases lease : leases) {
+            lease.close();
+        }
+        for (ConnectionPool pool : pools) {
+            pool.close();
+        }
+        database.close();
+    }
+
+    private ShardLeases leases(String owner, int shards) throws Exception {
+        ConnectionPool pool = database.pool(3);
+        pools.add(pool);
+        ShardLeases shardLeases = new ShardLeases(pool, shards, owner, LEASE_MILLIS);
+        leases.add(shardLeases);
+        shardLeases.initialize();
+        return shardLeases;
+    }
+
+    private ShardedMigration migration(ShardLeases shardLeases) {
+        return new ShardedMigration(shardLeases, pools.get(leases.indexOf(shardLeases)), () -> fetcher, writer,
+                new MigrationMetrics(), 2, 4, 25, 10, false);
+    }
+
+    @Test
+    public void processesSplitTheShardsWithoutOverlap() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(executor.submit(migration(leases("process" + i, 7))));
+            }
+            int migrated = 0;
+            for (Future<Integer> future : futures) {
+                migrated += future.get();
+            }
+            assertEquals(300, migrated);
+            assertEquals(300, written.size());
+            assertTrue(leases.get(0).isFinished());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void takesOverAnExpiredLeaseFromItsLastPosition() throws Exception {
+        ShardLeases shardLeases = leases("survivor", 1);
+        execute("UPDATE ExternalIdLeases SET owner = 'dead', expiresOn = 1, lastId = 'id149', migrated = 150");
+
+        assertEquals(150, (int) migration(shardLeases).call());
+
+        assertEquals(150, written.size());
+        assertFalse(written.containsKey("id149"));
+        assertTrue(written.containsKey("id150"));
+        assertTrue(shardLeases.isFinished());
+    }
+
+    @Test
+    public void doesNotTakeALiveLease() throws Exception {
+        ShardLeases shardLeases = leases("other", 1);
+        execute("UPDATE ExternalIdLeases SET owner = 'alive', expiresOn = " + (System.currentTimeMillis() + 60000));
+
+        assertNull(shardLeases.tryAcquire());
+        assertFalse(shardLeases.isFinished());
+    }
+
+    @Test
+    public void progressFailsOnceTheLeaseIsTaken() throws Exception {
+        ShardLeases shardLeases = leases("slow", 1);
+        ShardLeases.Lease lease = shardLeases.tryAcquire();
+        shardLeases.recordProgress(lease, "id010", 11);
+
+        execute("UPDATE ExternalIdLeases SET owner = 'thief'");
+        try {
+            shardLeases.recordProgress(lease, "id020", 21);
+            fail("Should have thrown an exception");
+        } catch (ShardLeases.LeaseLostException e) {
+            assertTrue(lease.isLost());
+        }
+        try (Connection connection = database.connect()) {
+            shardLeases.fence(lease, connection);
+            fail("Should have thrown an exception");
+        } catch (ShardLeases.LeaseLostException e) {
+            // expected
+        }
+        // Releasing a lost lease leaves the new owner's row alone
+        shardLeases.release(lease, true);
+        assertFalse(shardLeases.isFinished());
+    }
+
+    @Test
+    public void writeHeldUpPastATakeoverIsRolledBack() throws Exception {
+        ShardLeases shardLeases = leases("stalled", 1);
+        ShardLeases.Lease lease = shardLeases.tryAcquire();
+        ConnectionPool thiefPool = database.pool(1);
+        pools.add(thiefPool);
+        // Its clock is past the expiry of the stalled process's lease
+        ShardLeases thief = new ShardLeases(thiefPool, 1, "thief", LEASE_MILLIS,
+                () -> System.currentTimeMillis() + 2 * LEASE_MILLIS);
+        leases.add(thief);
+        AtomicInteger batches = new AtomicInteger();
+        AccountWriter stallingWriter = (Connection connection, Map<String, String> accounts) -> {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE Accounts SET migrationVersion = 1 WHERE id IN ('"
+                        + String.join("', '", accounts.keySet()) + "')");
+            }
+            if (batches.incrementAndGet() == 2) {
+                // The second transaction is held up until the lease has expired and been taken over
+                assertNotNull(thief.tryAcquire());
+            }
+            connection.commit();
+            return accounts.size();
+        };
+
+        try {
+            new MigrationPipeline(pools.get(0), () -> fetcher, stallingWriter,
+                    new ShardedMigration.LeaseCheckpoint(shardLeases, lease), new MigrationMetrics(),
+                    Collections.singletonList(lease.getShard()), 1, 4, 25, 10, 0).call();
+            fail("Should have thrown an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ShardLeases.LeaseLostException);
+        }
+        assertTrue(lease.isLost());
+        assertEquals(2, batches.get());
+        // Only the batch committed before the takeover was written
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement();
+                ResultSet results = statement
+                        .executeQuery("SELECT COUNT(*) FROM Accounts WHERE migrationVersion = 1")) {
+            results.next();
+            assertEquals(10, results.getInt(1));
+        }
+    }
+
+    @Test
+    public void rejectsADifferentShardCount() throws Exception {
+        leases("first", 4);
+        try {
+            leases("second", 5);
+            fail("Should have thrown an exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void execute(String sql) throws Exception {
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * An in-memory H2 database (in MySQL compatibility mode) with the parts of the Bridge schema that the
+ * migration touches.
+ */
+public class TestDatabase implements AutoCloseable {
+
+    private final String url = "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private final Connection keepAlive;
+
+    public TestDatabase() throws SQLException {
+        keepAlive = connect();
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("CREATE TABLE Accounts (id VARCHAR(255) PRIMARY KEY, healthCode VARCHAR(255), "
+                    + "externalId VARCHAR(255), sharingScope VARCHAR(255), timeZone VARCHAR(255), "
+                    + "notifyByEmail BOOLEAN DEFAULT TRUE, migrationVersion INT DEFAULT 0)");
+            statement.execute("CREATE TABLE AccountLanguages (accountId VARCHAR(255), language VARCHAR(255), "
+                    + "PRIMARY KEY (accountId, language))");
+            statement.execute("CREATE TABLE AccountDataGroups (accountId VARCHAR(255), dataGroup VARCHAR(255), "
+                    + "PRIMARY KEY (accountId, dataGroup))");
+        }
+    }
+
+    public Connection connect() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    public ConnectionPool pool(int size) {
+        return new ConnectionPool(size, this::connect);
+    }
+
+    public void insertAccount(String id, String healthCode, int migrationVersion) throws SQLException {
+        try (PreparedStatement statement = keepAlive
+                .prepareStatement("INSERT INTO Accounts (id, healthCode, migrationVersion) VALUES (?, ?, ?)")) {
+            statement.setString(1, id);
+            statement.setString(2, healthCode);
+            statement.setInt(3, migrationVersion);
+            statement.executeUpdate();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        keepAlive.close();
+    }
+}
@@ -22,7 +22,7 @@ import com.google.common.collect.Lists;
 public class UtilsTest {
 
     // A bunch of real-life examples.
-    private static final String[] TEST_JSON = new String[] {
+    static final String[] TEST_JSON = new String[] {
         "{'EXTERNAL_IDENTIFIER':'BBB','SHARING_SCOPE':'NO_SHARING','EMAIL_NOTIFICATIONS':'false','LANGUAGES':'en','DATA_GROUPS':null}",
         "{'EXTERNAL_IDENTIFIER':null,'SHARING_SCOPE':'ALL_QUALIFIED_RESEARCHERS','EMAIL_NOTIFICATIONS':'true','LANGUAGES':'en','DATA_GROUPS':null}",
         "{'EXTERNAL_IDENTIFIER':null,'SHARING_SCOPE':'ALL_QUALIFIED_RESEARCHERS','EMAIL_NOTIFICATIONS':'true','LANGUAGES':null,'DATA_GROUPS':null}",
@@ -53,17 +53,17 @@ public class UtilsTest {
     };
     
     private static final String[] LANG_STATEMENTS = new String[] {
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
         null,
         null,
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
         null,
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
         null,
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
-        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
+        "INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;",
         null
     };
     
@@ -72,11 +72,11 @@ public class UtilsTest {
         null,
         null,
         null,
-        "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group1');",
-        "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','test_user');",
+        "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group1') ON DUPLICATE KEY UPDATE accountId = accountId;",
+        "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','test_user') ON DUPLICATE KEY UPDATE accountId = accountId;",
         null,
         null,
-        "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group1');",
+        "INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group1') ON DUPLICATE KEY UPDATE accountId = accountId;",
         null,
         null,
         null
@@ -88,6 +88,18 @@ public class UtilsTest {
         assertEquals("jdbc:mysql://localhost:3306/BridgeDB?serverTimezone=UTC&requireSSL=true&useSSL=true&verifyServerCertificate=false", value);
     }
     
+    @Test
+    public void getConnectionStringWithRewriteBatchedStatements() throws Exception {
+        String value = Utils.getConnectionString("jdbc:mysql://localhost:3306/BridgeDB", false, true);
+        assertEquals("jdbc:mysql://localhost:3306/BridgeDB?serverTimezone=UTC&rewriteBatchedStatements=true", value);
+    }
+
+    @Test
+    public void getConnectionStringWithLoadLocalInfile() throws Exception {
+        String value = Utils.getConnectionString("jdbc:mysql://localhost:3306/BridgeDB", false, false, true);
+        assertEquals("jdbc:mysql://localhost:3306/BridgeDB?serverTimezone=UTC&allowLoadLocalInfile=true", value);
+    }
+    
     @Test
     public void optionsToAccountUpdateSQLEmptyNode() throws Exception {
         List<String> statements = new ArrayList<>();
@@ -129,8 +141,8 @@ public class UtilsTest {
         JsonNode node = createJson(TEST_JSON[9]);
         Utils.optionsToLanguagesUpdateSQL(statements, "ID", node);
 
-        assertEquals("INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en');", statements.get(0));
-        assertEquals("INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','fr');", statements.get(1));
+        assertEquals("INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','en') ON DUPLICATE KEY UPDATE accountId = accountId;", statements.get(0));
+        assertEquals("INSERT INTO AccountLanguages (accountId, language) VALUES ('ID','fr') ON DUPLICATE KEY UPDATE accountId = accountId;", statements.get(1));
     }
     
     @Test
@@ -153,8 +165,8 @@ public class UtilsTest {
         JsonNode node = createJson(TEST_JSON[4]);
         Utils.optionsToDataGroupsUpdateSQL(statements, "ID", node);
 
-        assertEquals("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group1');", statements.get(0));
-        assertEquals("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group2');", statements.get(1));
+        assertEquals("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group1') ON DUPLICATE KEY UPDATE accountId = accountId;", statements.get(0));
+        assertEquals("INSERT INTO AccountDataGroups (accountId, dataGroup) VALUES ('ID','group2') ON DUPLICATE KEY UPDATE accountId = accountId;", statements.get(1));
     }
     
     @Test
@@ -226,7 +238,7 @@ public class UtilsTest {
         assertEquals(Lists.newArrayList("group1", "group2"), output);
     }
     
-    private JsonNode createJson(String json) throws Exception {
+    static JsonNode createJson(String json) throws Exception {
         return new ObjectMapper().readTree(json.replaceAll("'", "\""));
     }
 }
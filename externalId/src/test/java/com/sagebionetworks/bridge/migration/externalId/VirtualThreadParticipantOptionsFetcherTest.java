@@ -0,0 +1,159 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.google.common.collect.Lists;
+
+public class VirtualThreadParticipantOptionsFetcherTest {
+
+    private static final String TABLE = "ParticipantOptions";
+
+    private AmazonDynamoDBClient client;
+    private ExecutorService executor;
+
+    @Before
+    public void before() {
+        client = mock(AmazonDynamoDBClient.class);
+        // Platform threads stand in for virtual ones on older JDKs; the fetcher only needs a thread per task
+        executor = VirtualThreads.isAvailable() ? VirtualThreads.newExecutor() : Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private VirtualThreadParticipantOptionsFetcher fetcher(int maxConcurrency) {
+        return new VirtualThreadParticipantOptionsFetcher(client, TABLE, maxConcurrency,
+                AdaptiveRateLimiter.unlimited("test"), new MigrationMetrics(), executor) {
+            @Override
+            protected long backoffMillis(int attempt) {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void mergesBatchesAndFillsInMissingRecords() throws Exception {
+        doAnswer(invocation -> {
+            BatchGetItemRequest request = (BatchGetItemRequest) invocation.getArguments()[0];
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (Map<String, AttributeValue> key : request.getRequestItems().get(TABLE).getKeys()) {
+                String healthCode = key.get("healthDataCode").getS();
+                if (!healthCode.equals("hc150")) {
+                    items.add(item(healthCode, "{\"LANGUAGES\":\"en\"}"));
+                }
+            }
+            return result(items);
+        }).when(client).batchGetItem(any(BatchGetItemRequest.class));
+        List<String> healthCodes = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            healthCodes.add("hc" + i);
+        }
+        healthCodes.add("hc0");
+
+        VirtualThreadParticipantOptionsFetcher fetcher = fetcher(10);
+        Map<String, String> records = fetcher.fetchAsync(healthCodes).get(5, TimeUnit.SECONDS);
+
+        assertEquals(250, records.size());
+        assertEquals("{\"LANGUAGES\":\"en\"}", records.get("hc249"));
+        assertSame(ParticipantOptionsFetcher.EMPTY_DATA, records.get("hc150"));
+        assertEquals(10, fetcher.getAvailablePermits());
+    }
+
+    @Test(timeout = 10000)
+    public void capsRequestsInFlight() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        doAnswer(invocation -> {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await();
+            return result(new ArrayList<>());
+        }).when(client).batchGetItem(any(BatchGetItemRequest.class));
+        VirtualThreadParticipantOptionsFetcher fetcher = fetcher(2);
+        List<String> healthCodes = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            healthCodes.add("hc" + i);
+        }
+
+        // The third batch needs a permit, so the call cannot return until one of the first two requests completes
+        CompletableFuture<CompletableFuture<Map<String, String>>> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetcher.fetchAsync(healthCodes);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+        assertEquals(0, fetcher.getAvailablePermits());
+        assertFalse(future.isDone());
+
+        release.countDown();
+        assertEquals(300, future.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).size());
+        assertEquals(3, calls.get());
+        assertEquals(2, fetcher.getAvailablePermits());
+    }
+
+    @Test
+    public void errorsFailTheFutureAndReleaseThePermit() throws Exception {
+        when(client.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenThrow(new AmazonServiceException("Access denied"));
+        VirtualThreadParticipantOptionsFetcher fetcher = fetcher(1);
+        CompletableFuture<Map<String, String>> future = fetcher.fetchAsync(Lists.newArrayList("hc1"));
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Should have thrown an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+        assertEquals(1, fetcher.getAvailablePermits());
+    }
+
+    private static BatchGetItemResult result(List<Map<String, AttributeValue>> items) {
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        responses.put(TABLE, items);
+        return new BatchGetItemResult().withResponses(responses)
+                .withUnprocessedKeys(new HashMap<String, KeysAndAttributes>());
+    }
+
+    private static Map<String, AttributeValue> item(String healthCode, String json) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("healthDataCode", new AttributeValue().withS(healthCode));
+        item.put("data", new AttributeValue().withS(json));
+        return item;
+    }
+}
@@ -0,0 +1,46 @@
+package com.sagebionetworks.bridge.migration.externalId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void availableFromJava21() throws Exception {
+        String version = System.getProperty("java.specification.version");
+        boolean java21 = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        assertEquals(java21, VirtualThreads.isAvailable());
+        if (java21) {
+            ExecutorService executor = VirtualThreads.newExecutor();
+            try {
+                assertEquals(Boolean.TRUE, executor.submit(() -> Thread.class.getMethod("isVirtual")
+                        .invoke(Thread.currentThread())).get(5, TimeUnit.SECONDS));
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            try {
+                VirtualThreads.newExecutor();
+                fail("Should have thrown an exception");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void platformThreadsUnlessVirtualIsAsked() throws Exception {
+        ExecutorService executor = VirtualThreads.newExecutor(false, 2);
+        try {
+            assertEquals("main", executor.submit(() -> Thread.currentThread().getThreadGroup().getName())
+                    .get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}